@@ -1,9 +1,14 @@
 import org.lenskit.api.ItemScorer
 import org.lenskit.bias.*
 import org.lenskit.knn.NeighborhoodSize
+import org.grouplens.lenskit.iterative.IterationCount
+import org.grouplens.lenskit.iterative.RegularizationTerm
 import org.lenskit.knn.item.ItemItemScorer
+import org.lenskit.mooc.svd.ALSModelProvider
+import org.lenskit.mooc.svd.ItemFactorPrecision
 import org.lenskit.mooc.svd.LatentFeatureCount
 import org.lenskit.mooc.svd.SVDItemScorer
+import org.lenskit.mooc.svd.SVDModel
 import org.lenskit.transform.normalize.MeanCenteringVectorNormalizer
 import org.lenskit.transform.normalize.VectorNormalizer
 
@@ -57,3 +62,29 @@ for (size in [0, 1, 5, 10, 15, 20, 25, 30, 40, 50]) {
     }
 }
 
+// alternating least squares over the observed ratings only
+for (size in [10, 25, 50]) {
+    algorithm("ALS") {
+        attributes["FeatureCount"] = size
+        attributes["Bias"] = "user-item"
+        bind ItemScorer to SVDItemScorer
+        bind SVDModel toProvider ALSModelProvider
+        set LatentFeatureCount to size
+        set IterationCount to 10
+        set RegularizationTerm to 0.05
+        bind BiasModel to UserItemBiasModel
+    }
+}
+
+// measure the accuracy drift of reduced-precision item factors
+for (precision in ["double", "float", "int8"]) {
+    algorithm("SVD-Precision") {
+        attributes["FeatureCount"] = 25
+        attributes["Bias"] = "user-item"
+        attributes["Precision"] = precision
+        bind ItemScorer to SVDItemScorer
+        set LatentFeatureCount to 25
+        set ItemFactorPrecision to precision
+        bind BiasModel to UserItemBiasModel
+    }
+}
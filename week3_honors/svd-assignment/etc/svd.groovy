@@ -1,7 +1,26 @@
+import org.lenskit.api.ItemRecommender
 import org.lenskit.api.ItemScorer
+import org.lenskit.mooc.svd.ItemClusterIndex
 import org.lenskit.mooc.svd.LatentFeatureCount
+import org.lenskit.mooc.svd.RandomizedSVDSolver
+import org.lenskit.mooc.svd.SVDItemRecommender
 import org.lenskit.mooc.svd.SVDItemScorer
+import org.lenskit.mooc.svd.SVDSolver
 
 // Set up item scorer
 bind ItemScorer to SVDItemScorer
-set LatentFeatureCount to 25
\ No newline at end of file
+set LatentFeatureCount to 25
+
+// Retrieve top-N lists straight from the model; set ItemClusterIndex.ClusterCount above 0
+// to search an approximate clustered item index instead of scanning every item
+bind ItemRecommender to SVDItemRecommender
+set ItemClusterIndex.ClusterCount to 0
+
+// Compute only the top features with the randomized solver over the sparse rating matrix;
+// bind SVDSolver to ExactSVDSolver to compute the full dense decomposition instead
+bind SVDSolver to RandomizedSVDSolver
+set RandomizedSVDSolver.PowerIterations to 2
+
+// To reuse a built model across runs, serve it from a memory-mapped model file:
+//   bind SVDModel toProvider MappedSVDModelProvider
+//   set MappedSVDModelProvider.ModelFile to "build/svd-model.bin"
\ No newline at end of file
@@ -0,0 +1,107 @@
+package org.lenskit.mooc.svd;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.lenskit.util.keys.FrozenHashKeyIndex;
+import org.lenskit.util.keys.KeyIndex;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares scoring every item for one user with the flat-array factors of {@link SVDModel}
+ * against the previous {@link RealVector} code path, which copied the item's row and multiplied
+ * the user vector by the singular values for every item.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SVDScoringBenchmark {
+    @Param({"10000"})
+    public int itemCount;
+    @Param({"40"})
+    public int featureCount;
+
+    private static final int USER_COUNT = 1000;
+
+    private KeyIndex itemIndex;
+    private long[] itemIds;
+    private RealMatrix userMatrix;
+    private RealMatrix itemMatrix;
+    private RealVector weights;
+    private SVDModel model;
+    private double[] scores;
+    private int user;
+
+    @Setup
+    public void setup() {
+        Random rng = new Random(42);
+        List<Long> users = new ArrayList<>(USER_COUNT);
+        for (long u = 0; u < USER_COUNT; u++) {
+            users.add(u);
+        }
+        List<Long> items = new ArrayList<>(itemCount);
+        for (long i = 0; i < itemCount; i++) {
+            items.add(i * 7);
+        }
+        itemIndex = FrozenHashKeyIndex.create(items);
+        itemIds = new long[itemCount];
+        for (int i = 0; i < itemCount; i++) {
+            itemIds[i] = items.get(i);
+        }
+        userMatrix = randomMatrix(rng, USER_COUNT, featureCount);
+        itemMatrix = randomMatrix(rng, itemCount, featureCount);
+        double[] w = new double[featureCount];
+        for (int f = 0; f < featureCount; f++) {
+            w[f] = 1 + rng.nextDouble();
+        }
+        weights = new ArrayRealVector(w);
+        model = new SVDModel(FrozenHashKeyIndex.create(users), itemIndex, userMatrix, itemMatrix, weights);
+        scores = new double[itemCount];
+    }
+
+    private static RealMatrix randomMatrix(Random rng, int nrows, int ncols) {
+        double[][] data = new double[nrows][ncols];
+        for (double[] row: data) {
+            for (int j = 0; j < ncols; j++) {
+                row[j] = rng.nextGaussian() * 0.1;
+            }
+        }
+        return new Array2DRowRealMatrix(data, false);
+    }
+
+    /**
+     * Score all items with the {@link RealVector} code path the model used to expose.
+     */
+    @Benchmark
+    public double[] scoreRealVector() {
+        user = (user + 1) % USER_COUNT;
+        RealVector uvec = userMatrix.getRowVector(user);
+        for (int i = 0; i < itemIds.length; i++) {
+            RealVector ivec = itemMatrix.getRowVector(itemIndex.getIndex(itemIds[i]));
+            scores[i] = uvec.ebeMultiply(weights).dotProduct(ivec);
+        }
+        return scores;
+    }
+
+    /**
+     * Score all items with the model's flat arrays, as {@link SVDItemScorer} does.
+     */
+    @Benchmark
+    public double[] scoreFlatArray() {
+        user = (user + 1) % USER_COUNT;
+        double[] uvec = model.getUserFeatureVector(user);
+        for (int i = 0; i < itemIds.length; i++) {
+            scores[i] = model.score(uvec, model.tryGetItemRow(itemIds[i]));
+        }
+        return scores;
+    }
+}
@@ -0,0 +1,312 @@
+package org.lenskit.mooc.svd;
+
+import org.grouplens.grapht.annotation.DefaultBoolean;
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.grouplens.lenskit.iterative.IterationCount;
+import org.grouplens.lenskit.iterative.RegularizationTerm;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.inject.Parameter;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.keys.FrozenHashKeyIndex;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Model builder that factorizes the rating matrix with alternating least squares (ALS).  Unlike
+ * the SVD, ALS only fits the observed ratings instead of treating missing ratings as zero
+ * residuals, and every half-iteration solves one small regularized least-squares system per user
+ * (or item), in parallel.
+ *
+ * <p>Two variants are supported:
+ *
+ * <dl>
+ * <dt>explicit feedback (the default)</dt>
+ * <dd>Fits the baseline residuals of the observed ratings, with weighted-lambda regularization
+ * (each row's penalty is scaled by its number of ratings).</dd>
+ * <dt>implicit feedback</dt>
+ * <dd>Fits a preference of 1 for every rated item and 0 for every other item, with the raw
+ * rating value as confidence weight {@code 1 + alpha * r} (Hu, Koren and Volinsky, 2008).
+ * Scores are then preference estimates on top of the baseline, which are useful for ranking but
+ * not for rating prediction.</dd>
+ * </dl>
+ *
+ * <p>The result is an {@link SVDModel} with unit feature weights, so {@link SVDItemScorer} and
+ * the other model consumers work unchanged.  ALS factors are not orthonormal, so the model folds
+ * new users and items in by solving the same regularized least-squares problem as training rather
+ * than by projection; the implicit variant does not support fold-in, since it would need the raw
+ * ratings as confidences rather than the baseline residuals the scorer folds in.
+ */
+public class ALSModelProvider implements Provider<SVDModel> {
+    private static final Logger logger = LoggerFactory.getLogger(ALSModelProvider.class);
+    private static final double INIT_SCALE = 0.1;
+
+    private final DataAccessObject dao;
+    private final BiasModel baseline;
+    private final int featureCount;
+    private final int iterationCount;
+    private final double regularization;
+    private final boolean implicit;
+    private final double confidenceWeight;
+    private final FactorPrecision itemPrecision;
+    private final boolean rerank;
+    private final Random random;
+
+    /**
+     * Construct the model builder.
+     * @param dao The data access object.
+     * @param bias The bias model to use as a baseline.
+     * @param nfeatures The number of latent features to train.
+     * @param niters The number of ALS iterations (each updates both users and items).
+     * @param reg The regularization term.
+     * @param implicit Whether to train the implicit-feedback variant.
+     * @param alpha The confidence weight for implicit feedback.
+     * @param precision The precision of the item factors used for scoring.
+     * @param rerank Whether to keep the full-precision item factors to re-rank top-N lists.
+     * @param rng The random number generator for initializing the item factors.
+     */
+    @Inject
+    public ALSModelProvider(@Transient DataAccessObject dao,
+                            @Transient BiasModel bias,
+                            @LatentFeatureCount int nfeatures,
+                            @IterationCount int niters,
+                            @RegularizationTerm double reg,
+                            @ImplicitFeedback boolean implicit,
+                            @ConfidenceWeight double alpha,
+                            @ItemFactorPrecision String precision,
+                            @ItemFactorRerank boolean rerank,
+                            @Transient Random rng) {
+        this.dao = dao;
+        baseline = bias;
+        featureCount = nfeatures;
+        iterationCount = niters;
+        regularization = reg;
+        this.implicit = implicit;
+        confidenceWeight = alpha;
+        itemPrecision = FactorPrecision.fromName(precision);
+        this.rerank = rerank;
+        random = rng;
+    }
+
+    @Override
+    public SVDModel get() {
+        KeyIndex userIndex = FrozenHashKeyIndex.create(dao.getEntityIds(CommonTypes.USER));
+        KeyIndex itemIndex = FrozenHashKeyIndex.create(dao.getEntityIds(CommonTypes.ITEM));
+        final int k = featureCount;
+
+        // implicit feedback uses the raw ratings as confidence values
+        ResidualMatrixBuilder builder = new ResidualMatrixBuilder(userIndex, itemIndex, implicit ? null : baseline);
+        SparseMatrix userRatings;
+        userRatings = builder.build(dao.query(Rating.class).get());
+        SparseMatrix itemRatings = userRatings.transpose();
+
+        double[] users = new double[userIndex.size() * k];
+        double[] items = new double[itemIndex.size() * k];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = random.nextGaussian() * INIT_SCALE;
+        }
+
+        logger.info("training {} ALS model with {} features for {} iterations",
+                    implicit ? "implicit" : "explicit", k, iterationCount);
+        for (int iter = 0; iter < iterationCount; iter++) {
+            solveRows(userRatings, items, users);
+            solveRows(itemRatings, users, items);
+            if (!implicit && logger.isDebugEnabled()) {
+                logger.debug("iteration {}: training RMSE {}", iter + 1, trainingError(userRatings, users, items));
+            }
+        }
+        if (!implicit) {
+            logger.info("trained ALS model with training RMSE {}", trainingError(userRatings, users, items));
+        }
+
+        double[] weights = new double[k];
+        Arrays.fill(weights, 1);
+        SVDModel model = new SVDModel(userIndex, itemIndex, weights,
+                                      new ArrayFactorMatrix(userIndex.size(), k, users),
+                                      new ArrayFactorMatrix(itemIndex.size(), k, items),
+                                      null);
+        model = implicit ? model.withoutFoldIn() : model.withLeastSquaresFoldIn(regularization);
+        return model.withItemPrecision(itemPrecision, rerank);
+    }
+
+    /**
+     * Solve for every row's factors with the other side's factors held fixed.
+     *
+     * @param ratings The ratings, with the rows to solve for on rows.
+     * @param fixed The fixed factors, indexed by column of {@code ratings}.
+     * @param out The factors to solve for, indexed by row of {@code ratings}.
+     */
+    private void solveRows(SparseMatrix ratings, double[] fixed, double[] out) {
+        final int k = featureCount;
+        final double[] gram = implicit ? gramMatrix(fixed, ratings.getColumnCount()) : null;
+        final ThreadLocal<double[][]> scratch = ThreadLocal.withInitial(() -> new double[][]{
+                new double[k * k], new double[k]
+        });
+        IntStream.range(0, ratings.getRowCount()).parallel().forEach(row -> {
+            double[][] bufs = scratch.get();
+            double[] a = bufs[0];
+            double[] b = bufs[1];
+            int start = ratings.getRowStart(row);
+            int end = ratings.getRowEnd(row);
+            if (start == end && !implicit) {
+                Arrays.fill(out, row * k, row * k + k, 0);
+                return;
+            }
+
+            if (implicit) {
+                System.arraycopy(gram, 0, a, 0, k * k);
+            } else {
+                Arrays.fill(a, 0);
+            }
+            Arrays.fill(b, 0);
+            for (int pos = start; pos < end; pos++) {
+                double r = ratings.getValue(pos);
+                // explicit: weight 1, target r; implicit: extra weight c - 1, target 1 with weight c
+                double w = implicit ? confidenceWeight * r : 1;
+                double t = implicit ? 1 + confidenceWeight * r : r;
+                addObservation(a, b, fixed, ratings.getColumnIndex(pos) * k, w, t, k);
+            }
+            double lambda = implicit ? regularization : regularization * (end - start);
+            for (int i = 0; i < k; i++) {
+                a[i * k + i] += lambda;
+            }
+            choleskySolve(a, b, k);
+            System.arraycopy(b, 0, out, row * k, k);
+        });
+    }
+
+    /**
+     * Add one observation to the normal equations {@code A x = b} of a least-squares problem:
+     * {@code A += w f f^T} (lower triangle only) and {@code b += t f}.
+     *
+     * @param a The row-major k by k matrix.
+     * @param b The right-hand side.
+     * @param f An array containing the observation's factors.
+     * @param off The position of the factors in {@code f}.
+     * @param w The weight of the observation.
+     * @param t The weighted target of the observation.
+     * @param k The dimension.
+     */
+    static void addObservation(double[] a, double[] b, double[] f, int off, double w, double t, int k) {
+        for (int i = 0; i < k; i++) {
+            double fi = f[off + i];
+            b[i] += t * fi;
+            double wfi = w * fi;
+            for (int j = 0; j <= i; j++) {
+                a[i * k + j] += wfi * f[off + j];
+            }
+        }
+    }
+
+    /**
+     * Compute the lower triangle of the Gram matrix {@code F^T F} of a factor matrix.
+     */
+    private double[] gramMatrix(double[] factors, int nrows) {
+        final int k = featureCount;
+        double[] gram = new double[k * k];
+        for (int r = 0; r < nrows; r++) {
+            int off = r * k;
+            for (int i = 0; i < k; i++) {
+                double fi = factors[off + i];
+                for (int j = 0; j <= i; j++) {
+                    gram[i * k + j] += fi * factors[off + j];
+                }
+            }
+        }
+        return gram;
+    }
+
+    /**
+     * Solve {@code A x = b} in place for a symmetric positive definite matrix.  Only the lower
+     * triangle of {@code a} is read; on return it holds the Cholesky factor and {@code b} holds
+     * the solution.
+     *
+     * @param a The row-major k by k matrix.
+     * @param b The right-hand side, overwritten with the solution.
+     * @param k The dimension.
+     */
+    static void choleskySolve(double[] a, double[] b, int k) {
+        for (int j = 0; j < k; j++) {
+            double d = a[j * k + j];
+            for (int p = 0; p < j; p++) {
+                d -= a[j * k + p] * a[j * k + p];
+            }
+            d = Math.sqrt(Math.max(d, 1.0e-12));
+            a[j * k + j] = d;
+            for (int i = j + 1; i < k; i++) {
+                double s = a[i * k + j];
+                for (int p = 0; p < j; p++) {
+                    s -= a[i * k + p] * a[j * k + p];
+                }
+                a[i * k + j] = s / d;
+            }
+        }
+        // forward substitution: L y = b
+        for (int i = 0; i < k; i++) {
+            double s = b[i];
+            for (int p = 0; p < i; p++) {
+                s -= a[i * k + p] * b[p];
+            }
+            b[i] = s / a[i * k + i];
+        }
+        // back substitution: L^T x = y
+        for (int i = k - 1; i >= 0; i--) {
+            double s = b[i];
+            for (int p = i + 1; p < k; p++) {
+                s -= a[p * k + i] * b[p];
+            }
+            b[i] = s / a[i * k + i];
+        }
+    }
+
+    private double trainingError(SparseMatrix ratings, double[] users, double[] items) {
+        final int k = featureCount;
+        double sse = IntStream.range(0, ratings.getRowCount()).parallel().mapToDouble(row -> {
+            double sum = 0;
+            for (int pos = ratings.getRowStart(row); pos < ratings.getRowEnd(row); pos++) {
+                int ioff = ratings.getColumnIndex(pos) * k;
+                double pred = 0;
+                for (int f = 0; f < k; f++) {
+                    pred += users[row * k + f] * items[ioff + f];
+                }
+                double err = ratings.getValue(pos) - pred;
+                sum += err * err;
+            }
+            return sum;
+        }).sum();
+        return Math.sqrt(sse / Math.max(ratings.getEntryCount(), 1));
+    }
+
+    /**
+     * Whether to train the implicit-feedback variant of ALS.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Boolean.class)
+    @DefaultBoolean(false)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface ImplicitFeedback {}
+
+    /**
+     * The confidence weight (alpha) applied to rating values for implicit-feedback ALS.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Double.class)
+    @DefaultDouble(10.0)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface ConfidenceWeight {}
+}
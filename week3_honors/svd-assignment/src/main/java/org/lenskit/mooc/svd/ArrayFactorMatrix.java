@@ -0,0 +1,63 @@
+package org.lenskit.mooc.svd;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Factor matrix stored in a single heap {@code double} array.
+ */
+final class ArrayFactorMatrix extends FactorMatrix {
+    private static final long serialVersionUID = 1L;
+
+    private final int rowCount;
+    private final int columnCount;
+    private final double[] data;
+
+    /**
+     * Wrap an array as a factor matrix.
+     * @param nrows The number of rows.
+     * @param ncols The number of columns.
+     * @param values The values, in row-major order (not copied).
+     */
+    ArrayFactorMatrix(int nrows, int ncols, double[] values) {
+        Preconditions.checkArgument(values.length == nrows * ncols, "array has wrong size");
+        rowCount = nrows;
+        columnCount = ncols;
+        data = values;
+    }
+
+    @Override
+    int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    double get(int row, int col) {
+        return data[row * columnCount + col];
+    }
+
+    @Override
+    void getRow(int row, double[] out, int offset) {
+        System.arraycopy(data, row * columnCount, out, offset, columnCount);
+    }
+
+    @Override
+    double dot(int row, double[] vec, int offset) {
+        final int k = columnCount;
+        final int base = row * k;
+        double sum = 0;
+        for (int f = 0; f < k; f++) {
+            sum += data[base + f] * vec[offset + f];
+        }
+        return sum;
+    }
+
+    @Override
+    double dot(int row, FactorMatrix other, int otherRow) {
+        return other.dot(otherRow, data, row * columnCount);
+    }
+}
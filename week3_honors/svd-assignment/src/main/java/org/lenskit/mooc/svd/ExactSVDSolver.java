@@ -0,0 +1,47 @@
+package org.lenskit.mooc.svd;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * SVD solver that densifies the matrix and computes the full decomposition with commons-math,
+ * truncating it afterwards.  This takes memory proportional to the full matrix size and cubic
+ * time, so it is only suitable for small data sets.
+ */
+public class ExactSVDSolver implements SVDSolver {
+    private static final Logger logger = LoggerFactory.getLogger(ExactSVDSolver.class);
+
+    @Override
+    public SVDResult decompose(SparseMatrix matrix, int rank) {
+        logger.info("densifying {} by {} matrix", matrix.getRowCount(), matrix.getColumnCount());
+        RealMatrix dense = matrix.toRealMatrix();
+
+        logger.info("factorizing matrix");
+        SingularValueDecomposition svd = new SingularValueDecomposition(dense);
+        logger.info("decomposed matrix has rank {}", svd.getRank());
+
+        RealMatrix userMatrix = svd.getU();
+        RealMatrix itemMatrix = svd.getV();
+        RealVector weights = new ArrayRealVector(svd.getSingularValues());
+        if (rank > 0) {
+            logger.info("truncating matrix to {} features", rank);
+            userMatrix = userMatrix.getSubMatrix(0, userMatrix.getRowDimension()-1, 0, rank-1);
+            itemMatrix = itemMatrix.getSubMatrix(0, itemMatrix.getRowDimension()-1, 0, rank-1);
+            weights = weights.getSubVector(0, rank);
+        }
+
+        return new SVDResult(userMatrix, itemMatrix, weights);
+    }
+
+    /**
+     * Describe the solver.  {@link MappedSVDModelProvider} fingerprints models by this string.
+     */
+    @Override
+    public String toString() {
+        return "ExactSVDSolver";
+    }
+}
@@ -0,0 +1,69 @@
+package org.lenskit.mooc.svd;
+
+import java.io.Serializable;
+
+/**
+ * Dense row-major matrix of latent factors (one row per user or item, one column per feature).
+ * Implementations differ in where and how the values are stored.
+ */
+abstract class FactorMatrix implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Get the number of rows.
+     * @return The number of rows.
+     */
+    abstract int getRowCount();
+
+    /**
+     * Get the number of columns (features).
+     * @return The number of columns.
+     */
+    abstract int getColumnCount();
+
+    /**
+     * Get a single value.
+     * @param row The row number.
+     * @param col The column number.
+     * @return The value.
+     */
+    abstract double get(int row, int col);
+
+    /**
+     * Copy a row into an array.
+     * @param row The row number.
+     * @param out The output array.
+     * @param offset The position in {@code out} at which to store the row.
+     */
+    void getRow(int row, double[] out, int offset) {
+        final int k = getColumnCount();
+        for (int f = 0; f < k; f++) {
+            out[offset + f] = get(row, f);
+        }
+    }
+
+    /**
+     * Compute the dot product of a row with a vector.
+     * @param row The row number.
+     * @param vec An array containing the vector.
+     * @param offset The position of the vector in {@code vec}.
+     * @return The dot product.
+     */
+    abstract double dot(int row, double[] vec, int offset);
+
+    /**
+     * Compute the dot product of a row with a row of another matrix.
+     * @param row The row number in this matrix.
+     * @param other The other matrix.
+     * @param otherRow The row number in the other matrix.
+     * @return The dot product.
+     */
+    double dot(int row, FactorMatrix other, int otherRow) {
+        final int k = getColumnCount();
+        double sum = 0;
+        for (int f = 0; f < k; f++) {
+            sum += get(row, f) * other.get(otherRow, f);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,55 @@
+package org.lenskit.mooc.svd;
+
+import java.util.Locale;
+
+/**
+ * Storage precision for the item factors used to score items.
+ *
+ * @see ItemFactorPrecision
+ */
+public enum FactorPrecision {
+    /**
+     * Full double precision (the default).
+     */
+    DOUBLE {
+        @Override
+        FactorMatrix convert(FactorMatrix matrix) {
+            return matrix;
+        }
+    },
+    /**
+     * Single precision.
+     */
+    FLOAT {
+        @Override
+        FactorMatrix convert(FactorMatrix matrix) {
+            return new FloatFactorMatrix(matrix);
+        }
+    },
+    /**
+     * 8-bit integers with a scale factor per row.
+     */
+    INT8 {
+        @Override
+        FactorMatrix convert(FactorMatrix matrix) {
+            return new QuantizedFactorMatrix(matrix);
+        }
+    };
+
+    /**
+     * Convert a factor matrix to this precision.
+     * @param matrix The full-precision matrix.
+     * @return The converted matrix (or {@code matrix} itself, for full precision).
+     */
+    abstract FactorMatrix convert(FactorMatrix matrix);
+
+    /**
+     * Look up a precision by name, as used in the {@link ItemFactorPrecision} parameter.
+     * @param name The name ({@code double}, {@code float} or {@code int8}; case-insensitive).
+     * @return The precision.
+     * @throws IllegalArgumentException if the name is not a valid precision.
+     */
+    public static FactorPrecision fromName(String name) {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+    }
+}
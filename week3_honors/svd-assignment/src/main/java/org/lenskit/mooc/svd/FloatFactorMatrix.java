@@ -0,0 +1,54 @@
+package org.lenskit.mooc.svd;
+
+/**
+ * Factor matrix stored in single precision.  It takes half the memory (and memory bandwidth) of
+ * an {@link ArrayFactorMatrix}; dot products are still accumulated in double precision.
+ */
+final class FloatFactorMatrix extends FactorMatrix {
+    private static final long serialVersionUID = 1L;
+
+    private final int rowCount;
+    private final int columnCount;
+    private final float[] data;
+
+    /**
+     * Create a single-precision copy of a factor matrix.
+     * @param source The matrix to copy.
+     */
+    FloatFactorMatrix(FactorMatrix source) {
+        rowCount = source.getRowCount();
+        columnCount = source.getColumnCount();
+        data = new float[rowCount * columnCount];
+        for (int r = 0; r < rowCount; r++) {
+            for (int f = 0; f < columnCount; f++) {
+                data[r * columnCount + f] = (float) source.get(r, f);
+            }
+        }
+    }
+
+    @Override
+    int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    double get(int row, int col) {
+        return data[row * columnCount + col];
+    }
+
+    @Override
+    double dot(int row, double[] vec, int offset) {
+        final int k = columnCount;
+        final int base = row * k;
+        double sum = 0;
+        for (int f = 0; f < k; f++) {
+            sum += data[base + f] * vec[offset + f];
+        }
+        return sum;
+    }
+}
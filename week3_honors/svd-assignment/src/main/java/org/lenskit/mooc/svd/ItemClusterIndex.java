@@ -0,0 +1,241 @@
+package org.lenskit.mooc.svd;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Qualifier;
+import java.io.Serializable;
+import java.lang.annotation.*;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Inverted-file (IVF) index over the item-feature matrix for approximate maximum inner product
+ * retrieval.  Items are partitioned by k-means clustering of their (singular-value scaled)
+ * feature vectors; a query ranks the cluster centroids against the user vector and only scores
+ * the items in the best few clusters.
+ */
+public class ItemClusterIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(ItemClusterIndex.class);
+    private static final int KMEANS_ITERATIONS = 10;
+
+    private final int featureCount;
+    private final double[] centroids;
+    private final int[] clusterOffsets;
+    private final int[] clusterRows;
+
+    /**
+     * Construct a cluster index from its stored representation.
+     *
+     * @param k The number of features.
+     * @param cents The cluster centroids, row-major (clusters x features).
+     * @param offsets The start position of each cluster in {@code rows}, plus the end position.
+     * @param rows The item rows, grouped by cluster.
+     */
+    ItemClusterIndex(int k, double[] cents, int[] offsets, int[] rows) {
+        featureCount = k;
+        centroids = cents;
+        clusterOffsets = offsets;
+        clusterRows = rows;
+    }
+
+    /**
+     * Build a cluster index.
+     *
+     * @param features The item-feature matrix.
+     * @param nclusters The number of clusters to create.
+     * @param rng The random number generator for seeding clusters.
+     * @return The cluster index.  It has no clusters if there are no items.
+     */
+    static ItemClusterIndex build(FactorMatrix features, int nclusters, Random rng) {
+        final int nitems = features.getRowCount();
+        final int k = features.getColumnCount();
+        if (nitems == 0) {
+            logger.info("no items to cluster");
+            return new ItemClusterIndex(k, new double[0], new int[1], new int[0]);
+        }
+        final double[] data = new double[nitems * k];
+        for (int i = 0; i < nitems; i++) {
+            features.getRow(i, data, i * k);
+        }
+        final int nc = Math.max(1, Math.min(nclusters, nitems));
+        logger.info("clustering {} items into {} clusters", nitems, nc);
+        final double[] cents = new double[nc * k];
+        for (int c = 0; c < nc; c++) {
+            int row = rng.nextInt(nitems);
+            System.arraycopy(data, row * k, cents, c * k, k);
+        }
+
+        final int[] assignment = new int[nitems];
+        int[] counts = new int[nc];
+        for (int iter = 0; iter < KMEANS_ITERATIONS; iter++) {
+            IntStream.range(0, nitems).parallel().forEach(i -> {
+                assignment[i] = nearestCentroid(cents, nc, data, i * k, k);
+            });
+
+            Arrays.fill(cents, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < nitems; i++) {
+                int c = assignment[i];
+                counts[c] += 1;
+                for (int f = 0; f < k; f++) {
+                    cents[c * k + f] += data[i * k + f];
+                }
+            }
+            for (int c = 0; c < nc; c++) {
+                if (counts[c] == 0) {
+                    // reseed empty clusters from a random item
+                    System.arraycopy(data, rng.nextInt(nitems) * k, cents, c * k, k);
+                } else {
+                    for (int f = 0; f < k; f++) {
+                        cents[c * k + f] /= counts[c];
+                    }
+                }
+            }
+        }
+
+        // final assignment, grouped by cluster
+        for (int i = 0; i < nitems; i++) {
+            assignment[i] = nearestCentroid(cents, nc, data, i * k, k);
+        }
+        int[] offsets = new int[nc + 1];
+        for (int c : assignment) {
+            offsets[c + 1] += 1;
+        }
+        for (int c = 0; c < nc; c++) {
+            offsets[c + 1] += offsets[c];
+        }
+        int[] next = Arrays.copyOf(offsets, nc);
+        int[] rows = new int[nitems];
+        for (int i = 0; i < nitems; i++) {
+            rows[next[assignment[i]]++] = i;
+        }
+        return new ItemClusterIndex(k, cents, offsets, rows);
+    }
+
+    private static int nearestCentroid(double[] cents, int nc, double[] features, int off, int k) {
+        int best = 0;
+        double bestDist = Double.POSITIVE_INFINITY;
+        for (int c = 0; c < nc; c++) {
+            double dist = 0;
+            for (int f = 0; f < k; f++) {
+                double d = features[off + f] - cents[c * k + f];
+                dist += d * d;
+            }
+            if (dist < bestDist) {
+                bestDist = dist;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get the number of clusters.
+     * @return The number of clusters.
+     */
+    public int getClusterCount() {
+        return clusterOffsets.length - 1;
+    }
+
+    /**
+     * Rank clusters by the inner product of their centroids with a user vector.
+     *
+     * @param user An array containing the user vector.
+     * @param offset The offset of the user vector in {@code user}.
+     * @param probes The number of clusters to select.
+     * @return The selected clusters, best first.
+     */
+    TopNRows rankClusters(double[] user, int offset, int probes) {
+        final int nc = getClusterCount();
+        TopNRows top = new TopNRows(Math.min(probes, nc));
+        for (int c = 0; c < nc; c++) {
+            double dot = 0;
+            for (int f = 0; f < featureCount; f++) {
+                dot += user[offset + f] * centroids[c * featureCount + f];
+            }
+            top.offer(c, dot);
+        }
+        top.sort();
+        return top;
+    }
+
+    /**
+     * Get the position of the first item in a cluster.
+     * @param cluster The cluster number.
+     * @return The start position in the cluster row list.
+     */
+    int getClusterStart(int cluster) {
+        return clusterOffsets[cluster];
+    }
+
+    /**
+     * Get the position one past the last item in a cluster.
+     * @param cluster The cluster number.
+     * @return The end position in the cluster row list.
+     */
+    int getClusterEnd(int cluster) {
+        return clusterOffsets[cluster + 1];
+    }
+
+    /**
+     * Get the item row at a position in the cluster row list.
+     * @param pos The position.
+     * @return The item row number.
+     */
+    int getItemRow(int pos) {
+        return clusterRows[pos];
+    }
+
+    /**
+     * Get the cluster centroids.
+     * @return The centroids, row-major (clusters x features); must not be modified.
+     */
+    double[] getCentroids() {
+        return centroids;
+    }
+
+    /**
+     * Get the cluster offsets.
+     * @return The start position of each cluster in the row list, plus the end position; must not
+     *         be modified.
+     */
+    int[] getClusterOffsets() {
+        return clusterOffsets;
+    }
+
+    /**
+     * Get the cluster row list.
+     * @return The item rows, grouped by cluster; must not be modified.
+     */
+    int[] getClusterRows() {
+        return clusterRows;
+    }
+
+    /**
+     * The number of item clusters to build for approximate top-N retrieval.  If 0 (the default),
+     * no cluster index is built and retrieval is always exact.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(0)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface ClusterCount {}
+
+    /**
+     * The number of item clusters to search when retrieving approximate top-N lists.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(8)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface ProbeCount {}
+}
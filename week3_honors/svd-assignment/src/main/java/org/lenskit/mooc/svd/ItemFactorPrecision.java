@@ -0,0 +1,23 @@
+package org.lenskit.mooc.svd;
+
+import org.grouplens.grapht.annotation.DefaultString;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling the precision of the item factors used for scoring: {@code double},
+ * {@code float} or {@code int8}.  Top-N lists retrieved from the model are re-ranked with the
+ * full-precision factors, unless {@link ItemFactorRerank} is turned off for a heap model.
+ *
+ * @see FactorPrecision
+ */
+@Documented
+@Qualifier
+@Parameter(String.class)
+@DefaultString("double")
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ItemFactorPrecision {
+}
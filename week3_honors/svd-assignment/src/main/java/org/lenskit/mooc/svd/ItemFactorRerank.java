@@ -0,0 +1,23 @@
+package org.lenskit.mooc.svd;
+
+import org.grouplens.grapht.annotation.DefaultBoolean;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter controlling whether a heap model with reduced-precision item factors (see
+ * {@link ItemFactorPrecision}) keeps the full-precision factors to re-rank top-N candidates.  It is
+ * on by default; turning it off drops the full-precision factors, so the model takes less memory,
+ * but every score (including top-N lists) then comes from the compact factors.  Memory-mapped
+ * models always re-rank, since their full-precision factors stay in the file.
+ */
+@Documented
+@Qualifier
+@Parameter(Boolean.class)
+@DefaultBoolean(true)
+@Target({ElementType.PARAMETER, ElementType.METHOD})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ItemFactorRerank {
+}
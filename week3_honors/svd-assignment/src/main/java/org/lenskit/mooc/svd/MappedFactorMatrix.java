@@ -0,0 +1,95 @@
+package org.lenskit.mooc.svd;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Factor matrix backed by a read-only memory mapping of a model file.  The values live in the
+ * operating system's page cache rather than on the Java heap, and are shared between processes
+ * mapping the same file.  Matrices larger than a single mapping allows are split into chunks of
+ * whole rows.
+ *
+ * <p>Serializing a mapped matrix writes a heap copy of its values.
+ */
+final class MappedFactorMatrix extends FactorMatrix {
+    private static final long serialVersionUID = 1L;
+    private static final long MAX_CHUNK_BYTES = Integer.MAX_VALUE & ~7L;
+
+    private final int rowCount;
+    private final int columnCount;
+    private final int rowsPerChunk;
+    private final transient DoubleBuffer[] chunks;
+
+    private MappedFactorMatrix(int nrows, int ncols, int chunkRows, DoubleBuffer[] bufs) {
+        rowCount = nrows;
+        columnCount = ncols;
+        rowsPerChunk = chunkRows;
+        chunks = bufs;
+    }
+
+    /**
+     * Map a matrix stored in a file as little-endian row-major doubles.
+     *
+     * @param channel The file channel.
+     * @param position The file position of the first value.
+     * @param nrows The number of rows.
+     * @param ncols The number of columns.
+     * @return The mapped matrix.
+     * @throws IOException if there is an error mapping the file.
+     */
+    static MappedFactorMatrix map(FileChannel channel, long position, int nrows, int ncols) throws IOException {
+        final long rowBytes = 8L * ncols;
+        if (rowBytes == 0 || nrows == 0) {
+            return new MappedFactorMatrix(nrows, ncols, Math.max(nrows, 1), new DoubleBuffer[0]);
+        }
+        int chunkRows = (int) Math.min(nrows, MAX_CHUNK_BYTES / rowBytes);
+        int nchunks = (nrows + chunkRows - 1) / chunkRows;
+        DoubleBuffer[] bufs = new DoubleBuffer[nchunks];
+        for (int c = 0; c < nchunks; c++) {
+            int start = c * chunkRows;
+            int rows = Math.min(chunkRows, nrows - start);
+            bufs[c] = channel.map(FileChannel.MapMode.READ_ONLY, position + start * rowBytes, rows * rowBytes)
+                             .order(ByteOrder.LITTLE_ENDIAN)
+                             .asDoubleBuffer();
+        }
+        return new MappedFactorMatrix(nrows, ncols, chunkRows, bufs);
+    }
+
+    @Override
+    int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    double get(int row, int col) {
+        return chunks[row / rowsPerChunk].get((row % rowsPerChunk) * columnCount + col);
+    }
+
+    @Override
+    double dot(int row, double[] vec, int offset) {
+        final DoubleBuffer buf = chunks[row / rowsPerChunk];
+        final int k = columnCount;
+        final int base = (row % rowsPerChunk) * k;
+        double sum = 0;
+        for (int f = 0; f < k; f++) {
+            sum += buf.get(base + f) * vec[offset + f];
+        }
+        return sum;
+    }
+
+    private Object writeReplace() throws ObjectStreamException {
+        double[] data = new double[rowCount * columnCount];
+        for (int r = 0; r < rowCount; r++) {
+            getRow(r, data, r * columnCount);
+        }
+        return new ArrayFactorMatrix(rowCount, columnCount, data);
+    }
+}
@@ -0,0 +1,221 @@
+package org.lenskit.mooc.svd;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.grapht.annotation.DefaultString;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.inject.Parameter;
+import org.lenskit.inject.Transient;
+import org.lenskit.util.io.ObjectStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Qualifier;
+import java.io.File;
+import java.io.IOException;
+import java.lang.annotation.*;
+
+/**
+ * Provider that serves the SVD model from a memory-mapped {@linkplain SVDModelFormat model file}.
+ * If the file does not exist yet, the model is built with {@link SVDModelBuilder} and written out
+ * first; later runs (or other processes) map the existing file without rebuilding.
+ *
+ * <p>Each model file is tied to its training data and configuration by a fingerprint of the
+ * ratings, the user and item IDs, the baseline biases (which define the residuals), the feature
+ * count, the cluster count and the solver.  The fingerprint is part of the file name (inserted
+ * before the extension of the {@linkplain ModelFile configured path}) and stored in the file
+ * header.  Different training sets, such as the folds of a crossfold evaluation, and different
+ * configurations therefore get separate files and never score with each other's models, and a
+ * model is rebuilt when either changes.  Files for old data are not deleted.
+ */
+public class MappedSVDModelProvider implements Provider<SVDModel> {
+    private static final Logger logger = LoggerFactory.getLogger(MappedSVDModelProvider.class);
+
+    private final File modelFile;
+    private final DataAccessObject dao;
+    private final SVDModelBuilder builder;
+    private final BiasModel baseline;
+    private final SVDSolver solver;
+    private final int featureCount;
+    private final int clusterCount;
+    private final FactorPrecision itemPrecision;
+
+    /**
+     * Construct the model provider.
+     * @param path The path of the model file.
+     * @param dao The data access object, to fingerprint the training data.
+     * @param builder The builder to use if the model file does not exist.
+     * @param bias The baseline bias model the builder uses, to fingerprint the residuals.
+     * @param solver The solver the builder uses.
+     * @param nfeatures The number of latent features the builder trains.
+     * @param nclusters The number of item clusters the builder indexes.
+     * @param precision The precision of the item factors used for scoring.  The model file always
+     *                  stores full-precision factors; reduced-precision copies are made on load.
+     */
+    @Inject
+    public MappedSVDModelProvider(@ModelFile String path,
+                                  @Transient DataAccessObject dao,
+                                  @Transient SVDModelBuilder builder,
+                                  @Transient BiasModel bias,
+                                  @Transient SVDSolver solver,
+                                  @LatentFeatureCount int nfeatures,
+                                  @ItemClusterIndex.ClusterCount int nclusters,
+                                  @ItemFactorPrecision String precision) {
+        modelFile = new File(path);
+        this.dao = dao;
+        this.builder = builder;
+        baseline = bias;
+        this.solver = solver;
+        featureCount = nfeatures;
+        clusterCount = nclusters;
+        itemPrecision = FactorPrecision.fromName(precision);
+    }
+
+    @Override
+    public SVDModel get() {
+        long fingerprint = mix(fingerprint(dao) * 31 + configurationHash());
+        File file = getModelFile(fingerprint);
+        try {
+            if (!isCurrent(file, fingerprint)) {
+                logger.info("no current model in {}, building model", file);
+                SVDModelFormat.write(builder.build(), file, fingerprint);
+            }
+            return SVDModelFormat.open(file).withItemPrecision(itemPrecision);
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error loading SVD model from " + file, e);
+        }
+    }
+
+    /**
+     * Get the model file for a training data fingerprint.
+     */
+    private File getModelFile(long fingerprint) {
+        String name = modelFile.getName();
+        String tag = String.format("-%016x", fingerprint);
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot) + tag + name.substring(dot);
+        } else {
+            name = name + tag;
+        }
+        return new File(modelFile.getParentFile(), name);
+    }
+
+    private static boolean isCurrent(File file, long fingerprint) {
+        if (!file.exists()) {
+            return false;
+        }
+        try {
+            return SVDModelFormat.readFingerprint(file) == fingerprint;
+        } catch (IOException e) {
+            logger.warn("cannot read existing model file {}: {}", file, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Compute a fingerprint of the training data: the ratings (in any order) and the user and
+     * item IDs.  This takes one pass over the ratings, which is cheap next to building the model.
+     *
+     * @param dao The data access object.
+     * @return The fingerprint.
+     */
+    static long fingerprint(DataAccessObject dao) {
+        // hashes are summed, so the fingerprint does not depend on the order of the data
+        long ratingHash = 0;
+        long nratings = 0;
+        try (ObjectStream<Rating> ratings = dao.query(Rating.class)
+                                               .stream()) {
+            for (Rating r : ratings) {
+                long h = mix(r.getUserId());
+                h = mix(h * 31 + r.getItemId());
+                h = mix(h * 31 + Double.doubleToLongBits(r.getValue()));
+                ratingHash += h;
+                nratings += 1;
+            }
+        }
+        LongSet users = dao.getEntityIds(CommonTypes.USER);
+        LongSet items = dao.getEntityIds(CommonTypes.ITEM);
+        long hash = mix(nratings);
+        hash = mix(hash * 31 + ratingHash);
+        hash = mix(hash * 31 + users.size());
+        hash = mix(hash * 31 + idHash(users));
+        hash = mix(hash * 31 + items.size());
+        hash = mix(hash * 31 + idHash(items));
+        return hash;
+    }
+
+    /**
+     * Compute a hash of the model configuration: the feature and cluster counts, the solver and
+     * its parameters, and the baseline intercept and biases of every user and item, so a change to
+     * the bias model (or its own training data) changes the residuals the model is fit to.
+     *
+     * @return The configuration hash.
+     */
+    private long configurationHash() {
+        long hash = mix(featureCount);
+        hash = mix(hash * 31 + clusterCount);
+        hash = mix(hash * 31 + stringHash(solver.toString()));
+        hash = mix(hash * 31 + stringHash(baseline.getClass().getName()));
+        hash = mix(hash * 31 + Double.doubleToLongBits(baseline.getIntercept()));
+        long biasHash = 0;
+        LongIterator iter = dao.getEntityIds(CommonTypes.USER).iterator();
+        while (iter.hasNext()) {
+            long user = iter.nextLong();
+            biasHash += mix(mix(user) * 31 + Double.doubleToLongBits(baseline.getUserBias(user)));
+        }
+        iter = dao.getEntityIds(CommonTypes.ITEM).iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            biasHash += mix(~mix(item) * 31 + Double.doubleToLongBits(baseline.getItemBias(item)));
+        }
+        return mix(hash * 31 + biasHash);
+    }
+
+    private static long stringHash(String str) {
+        long hash = 0;
+        for (int i = 0; i < str.length(); i++) {
+            hash = hash * 31 + str.charAt(i);
+        }
+        return mix(hash);
+    }
+
+    private static long idHash(LongSet ids) {
+        long hash = 0;
+        LongIterator iter = ids.iterator();
+        while (iter.hasNext()) {
+            hash += mix(iter.nextLong());
+        }
+        return hash;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * The path of the memory-mapped SVD model file.  The fingerprint of the training data and
+     * configuration is inserted before the extension, so {@code build/svd-model.bin} becomes something like
+     * {@code build/svd-model-3f2a9c0d81e4b756.bin}.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(String.class)
+    @DefaultString("build/svd-model.bin")
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface ModelFile {}
+}
@@ -0,0 +1,67 @@
+package org.lenskit.mooc.svd;
+
+/**
+ * Factor matrix quantized to 8-bit integers with one scale factor per row.  Each row is stored as
+ * {@code round(x / scale)} with {@code scale = max|x| / 127}, so it takes an eighth of the memory
+ * of an {@link ArrayFactorMatrix} at the cost of a relative error of up to 1/254 of the row's
+ * largest value in each entry.
+ */
+final class QuantizedFactorMatrix extends FactorMatrix {
+    private static final long serialVersionUID = 1L;
+    private static final int LEVELS = 127;
+
+    private final int rowCount;
+    private final int columnCount;
+    private final byte[] data;
+    private final double[] scales;
+
+    /**
+     * Create a quantized copy of a factor matrix.
+     * @param source The matrix to copy.
+     */
+    QuantizedFactorMatrix(FactorMatrix source) {
+        rowCount = source.getRowCount();
+        columnCount = source.getColumnCount();
+        data = new byte[rowCount * columnCount];
+        scales = new double[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            double max = 0;
+            for (int f = 0; f < columnCount; f++) {
+                max = Math.max(max, Math.abs(source.get(r, f)));
+            }
+            double scale = max / LEVELS;
+            scales[r] = scale;
+            if (scale > 0) {
+                for (int f = 0; f < columnCount; f++) {
+                    data[r * columnCount + f] = (byte) Math.round(source.get(r, f) / scale);
+                }
+            }
+        }
+    }
+
+    @Override
+    int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    int getColumnCount() {
+        return columnCount;
+    }
+
+    @Override
+    double get(int row, int col) {
+        return data[row * columnCount + col] * scales[row];
+    }
+
+    @Override
+    double dot(int row, double[] vec, int offset) {
+        final int k = columnCount;
+        final int base = row * k;
+        double sum = 0;
+        for (int f = 0; f < k; f++) {
+            sum += data[base + f] * vec[offset + f];
+        }
+        return sum * scales[row];
+    }
+}
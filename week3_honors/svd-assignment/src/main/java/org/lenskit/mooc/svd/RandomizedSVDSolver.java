@@ -0,0 +1,171 @@
+package org.lenskit.mooc.svd;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SingularValueDecomposition;
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+import java.util.Random;
+
+/**
+ * Truncated SVD solver using the randomized range finder of Halko, Martinsson and Tropp.  It
+ * only touches the residual matrix through sparse products, so it takes time and memory
+ * proportional to the number of ratings times the number of features instead of the full
+ * matrix size.
+ *
+ * <p>The solver projects the matrix onto a random subspace of {@code rank + oversampling}
+ * dimensions, refines the subspace with a few power iterations, and then computes an exact
+ * SVD of the small projected matrix.
+ */
+public class RandomizedSVDSolver implements SVDSolver {
+    private static final Logger logger = LoggerFactory.getLogger(RandomizedSVDSolver.class);
+    private static final double EPSILON = 1.0e-10;
+
+    private final int oversampling;
+    private final int powerIterations;
+    private final Random random;
+
+    @Inject
+    public RandomizedSVDSolver(@Oversampling int over, @PowerIterations int iters, Random rng) {
+        oversampling = over;
+        powerIterations = iters;
+        random = rng;
+    }
+
+    @Override
+    public SVDResult decompose(SparseMatrix matrix, int rank) {
+        final int nrows = matrix.getRowCount();
+        final int ncols = matrix.getColumnCount();
+        final int maxRank = Math.min(nrows, ncols);
+        final int k = rank > 0 ? Math.min(rank, maxRank) : maxRank;
+        final int width = Math.min(k + oversampling, maxRank);
+        logger.info("computing randomized SVD of {} by {} matrix ({} entries) with {} features",
+                    nrows, ncols, matrix.getEntryCount(), k);
+
+        // sample the range of the matrix: Y = A * Omega
+        double[][] omega = new double[width][ncols];
+        for (double[] vec : omega) {
+            for (int j = 0; j < ncols; j++) {
+                vec[j] = random.nextGaussian();
+            }
+        }
+        double[][] range = new double[width][nrows];
+        matrix.multiply(omega, range);
+        orthonormalize(range);
+
+        // power iterations sharpen the spectrum: Y = (A A^T)^q A Omega
+        double[][] corange = omega;
+        for (int i = 0; i < powerIterations; i++) {
+            logger.debug("power iteration {}", i + 1);
+            matrix.transposeMultiply(range, corange);
+            orthonormalize(corange);
+            matrix.multiply(corange, range);
+            orthonormalize(range);
+        }
+
+        // project the matrix onto the range: B = Q^T A, stored as its rows (A^T Q)^T
+        matrix.transposeMultiply(range, corange);
+        logger.info("factorizing {} by {} projected matrix", width, ncols);
+        SingularValueDecomposition svd =
+                new SingularValueDecomposition(new Array2DRowRealMatrix(corange, false));
+
+        RealMatrix smallU = svd.getU();
+        RealMatrix itemMatrix = svd.getV().getSubMatrix(0, ncols - 1, 0, k - 1);
+        double[] weights = new double[k];
+        System.arraycopy(svd.getSingularValues(), 0, weights, 0, k);
+
+        // lift the left vectors back out of the subspace: U = Q * U_B
+        double[][] users = new double[nrows][k];
+        for (int c = 0; c < width; c++) {
+            double[] q = range[c];
+            for (int f = 0; f < k; f++) {
+                double w = smallU.getEntry(c, f);
+                if (w != 0) {
+                    for (int r = 0; r < nrows; r++) {
+                        users[r][f] += q[r] * w;
+                    }
+                }
+            }
+        }
+
+        return new SVDResult(new Array2DRowRealMatrix(users, false), itemMatrix,
+                             new ArrayRealVector(weights, false));
+    }
+
+    /**
+     * Orthonormalize a block of vectors in place with modified Gram-Schmidt.  Each vector is
+     * projected twice for numerical stability; vectors that are (numerically) in the span of
+     * earlier ones are zeroed.
+     *
+     * @param vectors The vectors to orthonormalize.
+     */
+    static void orthonormalize(double[][] vectors) {
+        for (int i = 0; i < vectors.length; i++) {
+            double[] v = vectors[i];
+            double initial = norm(v);
+            for (int pass = 0; pass < 2; pass++) {
+                for (int j = 0; j < i; j++) {
+                    double[] u = vectors[j];
+                    double dot = 0;
+                    for (int r = 0; r < v.length; r++) {
+                        dot += u[r] * v[r];
+                    }
+                    for (int r = 0; r < v.length; r++) {
+                        v[r] -= dot * u[r];
+                    }
+                }
+            }
+            double len = norm(v);
+            double scale = len > EPSILON * Math.max(initial, 1) ? 1 / len : 0;
+            for (int r = 0; r < v.length; r++) {
+                v[r] *= scale;
+            }
+        }
+    }
+
+    private static double norm(double[] v) {
+        double ss = 0;
+        for (double x : v) {
+            ss += x * x;
+        }
+        return Math.sqrt(ss);
+    }
+
+    /**
+     * Describe the solver and its parameters.  {@link MappedSVDModelProvider} fingerprints models
+     * by this string.
+     */
+    @Override
+    public String toString() {
+        return "RandomizedSVDSolver(oversampling=" + oversampling + ", powerIterations=" + powerIterations + ")";
+    }
+
+    /**
+     * Number of extra random dimensions to sample beyond the requested rank.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(10)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface Oversampling {}
+
+    /**
+     * Number of power iterations to use when refining the sampled range.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(2)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface PowerIterations {}
+}
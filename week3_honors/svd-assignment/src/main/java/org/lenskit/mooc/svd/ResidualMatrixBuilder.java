@@ -0,0 +1,142 @@
+package org.lenskit.mooc.svd;
+
+import com.google.common.base.Stopwatch;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Builds the sparse matrix of baseline residuals (rating minus baseline score) from a list of
+ * ratings.  This is the input to the matrix factorization algorithms.
+ *
+ * <p>The rating list is split into one contiguous range per worker thread, and each worker looks
+ * up the user and item rows and computes the residuals of its range into its own matrix builder,
+ * so no single thread reads the whole input.  The per-worker builders are merged in range order,
+ * so the merged entries are in list order; if a user has rated an item more than once, the last
+ * rating in the list wins (see {@link SparseMatrix.Builder#build()}).  Baseline scores come from
+ * primitive arrays indexed by row, precomputed once from the bias model, so the workers never
+ * call into the bias model.
+ *
+ * <p>Without a bias model, the builder stores the raw rating values instead of residuals.
+ */
+public final class ResidualMatrixBuilder {
+    private static final Logger logger = LoggerFactory.getLogger(ResidualMatrixBuilder.class);
+    /**
+     * The smallest number of ratings worth a worker thread of its own.
+     */
+    private static final int MIN_PARTITION_SIZE = 8192;
+
+    private final KeyIndex userIndex;
+    private final KeyIndex itemIndex;
+    private final double[] userBaselines;
+    private final double[] itemBiases;
+    private final int threadCount;
+
+    /**
+     * Create a residual matrix builder using one worker thread per processor.
+     *
+     * @param users The index mapping of user IDs to row numbers.
+     * @param items The index mapping of item IDs to column numbers.
+     * @param baseline The baseline bias model, or {@code null} to store raw ratings.
+     */
+    public ResidualMatrixBuilder(KeyIndex users, KeyIndex items, @Nullable BiasModel baseline) {
+        this(users, items, baseline, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create a residual matrix builder.
+     *
+     * @param users The index mapping of user IDs to row numbers.
+     * @param items The index mapping of item IDs to column numbers.
+     * @param baseline The baseline bias model, or {@code null} to store raw ratings.
+     * @param nthreads The number of worker threads to use.
+     */
+    public ResidualMatrixBuilder(KeyIndex users, KeyIndex items, @Nullable BiasModel baseline, int nthreads) {
+        userIndex = users;
+        itemIndex = items;
+        threadCount = Math.max(1, nthreads);
+
+        userBaselines = new double[users.size()];
+        itemBiases = new double[items.size()];
+        if (baseline != null) {
+            double intercept = baseline.getIntercept();
+            for (int u = 0; u < userBaselines.length; u++) {
+                userBaselines[u] = intercept + baseline.getUserBias(users.getKey(u));
+            }
+            for (int i = 0; i < itemBiases.length; i++) {
+                itemBiases[i] = baseline.getItemBias(items.getKey(i));
+            }
+        }
+    }
+
+    /**
+     * Get the baseline score for a user and item.
+     * @param userRow The user's row number.
+     * @param itemRow The item's column number.
+     * @return The baseline score.
+     */
+    public double getBaseline(int userRow, int itemRow) {
+        return userBaselines[userRow] + itemBiases[itemRow];
+    }
+
+    /**
+     * Build the residual matrix.  Every rating's user and item must be in the index mappings.
+     *
+     * @param ratings The ratings, in order (later ratings replace earlier ones for the same user
+     *                and item).  The list should support fast random access.
+     * @return A sparse matrix with users on rows and items on columns, containing the residuals.
+     */
+    public SparseMatrix build(List<Rating> ratings) {
+        final int nusers = userIndex.size();
+        final int nitems = itemIndex.size();
+        final int n = ratings.size();
+        final int nparts = Math.max(1, Math.min(threadCount, n / MIN_PARTITION_SIZE));
+        logger.info("creating {} by {} residual matrix with {} threads", nusers, nitems, nparts);
+        Stopwatch timer = Stopwatch.createStarted();
+
+        ExecutorService executor = Executors.newFixedThreadPool(nparts);
+        List<Future<SparseMatrix.Builder>> results = new ArrayList<>(nparts);
+        try {
+            for (int t = 0; t < nparts; t++) {
+                final int from = (int) ((long) n * t / nparts);
+                final int to = (int) ((long) n * (t + 1) / nparts);
+                results.add(executor.submit(() -> {
+                    SparseMatrix.Builder local = SparseMatrix.newBuilder(nusers, nitems);
+                    addResiduals(ratings.subList(from, to), local);
+                    return local;
+                }));
+            }
+
+            SparseMatrix.Builder matrix = SparseMatrix.newBuilder(nusers, nitems);
+            for (Future<SparseMatrix.Builder> result : results) {
+                matrix.addAll(result.get());
+            }
+            logger.info("gathered {} residuals in {}", matrix.size(), timer);
+            SparseMatrix built = matrix.build();
+            logger.info("built residual matrix with {} entries in {}", built.getEntryCount(), timer);
+            return built;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted building residual matrix", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error building residual matrix", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void addResiduals(List<Rating> ratings, SparseMatrix.Builder matrix) {
+        for (Rating r : ratings) {
+            int u = userIndex.getIndex(r.getUserId());
+            int j = itemIndex.getIndex(r.getItemId());
+            matrix.add(u, j, r.getValue() - userBaselines[u] - itemBiases[j]);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.lenskit.mooc.svd;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.ratings.Rating;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.List;
+
+/**
+ * Folds users and items that are not in an {@link SVDModel} in from their ratings in the DAO.
+ * {@link SVDItemScorer} and {@link SVDItemRecommender} share one instance per recommender, so
+ * they see the same vectors.
+ *
+ * <p>Folded vectors are cached here rather than in the (shared) model, in a bounded cache keyed by
+ * user or item ID.  Each entry records a hash of the ratings it was computed from: a lookup reads
+ * the ratings once, and folds in again only if their hash has changed, so added, removed and
+ * re-rated ratings are all picked up.  Callers that know a user's or item's ratings have changed
+ * can also {@linkplain #invalidateUser(long) drop} the cached vector.
+ */
+public class SVDFoldIn {
+    private static final Logger logger = LoggerFactory.getLogger(SVDFoldIn.class);
+    private static final int CACHE_CAPACITY = 10000;
+    private final SVDModel model;
+    private final DataAccessObject dao;
+    private final BiasModel baseline;
+    private final Cache<Long, FoldedVector> userVectors;
+    private final Cache<Long, FoldedVector> itemVectors;
+
+    /**
+     * Construct the fold-in component.
+     * @param model The model to fold into.
+     * @param dao The data access object holding the current ratings.
+     * @param baseline The baseline bias model (providing means).
+     */
+    @Inject
+    public SVDFoldIn(SVDModel model, DataAccessObject dao, BiasModel baseline) {
+        this.model = model;
+        this.dao = dao;
+        this.baseline = baseline;
+        userVectors = CacheBuilder.newBuilder().maximumSize(CACHE_CAPACITY).build();
+        itemVectors = CacheBuilder.newBuilder().maximumSize(CACHE_CAPACITY).build();
+    }
+
+    /**
+     * Get the feature vector of a user who is not in the model, folding them in if needed.
+     * @param user The user ID.
+     * @return The user's feature vector, or {@code null} if fold-in is unsupported by the model or
+     *         the user has not rated any item in the model.
+     */
+    @Nullable
+    public double[] getUserVector(long user) {
+        if (!model.canFoldIn()) {
+            return null;
+        }
+        List<Rating> ratings = dao.query(Rating.class)
+                                  .withAttribute(CommonAttributes.USER_ID, user)
+                                  .get();
+        long hash = 0;
+        for (Rating r : ratings) {
+            hash += ratingHash(r.getItemId(), r.getValue());
+        }
+        FoldedVector cached = userVectors.getIfPresent(user);
+        if (cached != null && cached.ratingHash == hash) {
+            return cached.vector;
+        }
+
+        double userBaseline = baseline.getIntercept() + baseline.getUserBias(user);
+        Long2DoubleMap residuals = new Long2DoubleOpenHashMap();
+        for (Rating r : ratings) {
+            if (model.tryGetItemRow(r.getItemId()) >= 0) {
+                residuals.put(r.getItemId(), r.getValue() - userBaseline - baseline.getItemBias(r.getItemId()));
+            }
+        }
+        double[] vec = null;
+        if (!residuals.isEmpty()) {
+            logger.debug("folding in user {} with {} ratings", user, residuals.size());
+            vec = model.foldInUser(residuals);
+        }
+        userVectors.put(user, new FoldedVector(vec, hash));
+        return vec;
+    }
+
+    /**
+     * Get the scaled feature vector of an item that is not in the model, folding it in if needed.
+     * @param item The item ID.
+     * @return The item's feature vector, or {@code null} if fold-in is unsupported by the model or
+     *         the item has not been rated by any user in the model.
+     */
+    @Nullable
+    public double[] getItemVector(long item) {
+        if (!model.canFoldIn()) {
+            return null;
+        }
+        List<Rating> ratings = dao.query(Rating.class)
+                                  .withAttribute(CommonAttributes.ITEM_ID, item)
+                                  .get();
+        long hash = 0;
+        for (Rating r : ratings) {
+            hash += ratingHash(r.getUserId(), r.getValue());
+        }
+        FoldedVector cached = itemVectors.getIfPresent(item);
+        if (cached != null && cached.ratingHash == hash) {
+            return cached.vector;
+        }
+
+        double itemBaseline = baseline.getIntercept() + baseline.getItemBias(item);
+        Long2DoubleMap residuals = new Long2DoubleOpenHashMap();
+        for (Rating r : ratings) {
+            if (model.tryGetUserRow(r.getUserId()) >= 0) {
+                residuals.put(r.getUserId(), r.getValue() - itemBaseline - baseline.getUserBias(r.getUserId()));
+            }
+        }
+        double[] vec = null;
+        if (!residuals.isEmpty()) {
+            logger.debug("folding in item {} with {} ratings", item, residuals.size());
+            vec = model.foldInItem(residuals);
+        }
+        itemVectors.put(item, new FoldedVector(vec, hash));
+        return vec;
+    }
+
+    /**
+     * Drop the cached vector of a user, so the next lookup folds them in again.
+     * @param user The user ID.
+     */
+    public void invalidateUser(long user) {
+        userVectors.invalidate(user);
+    }
+
+    /**
+     * Drop the cached vector of an item, so the next lookup folds it in again.
+     * @param item The item ID.
+     */
+    public void invalidateItem(long item) {
+        itemVectors.invalidate(item);
+    }
+
+    /**
+     * Hash one rating.  Rating hashes are summed, so the hash of a rating list does not depend on
+     * its order.
+     */
+    private static long ratingHash(long key, double value) {
+        long h = key * 0x9e3779b97f4a7c15L + Double.doubleToLongBits(value);
+        // 64-bit finalizer of MurmurHash3
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * A folded-in feature vector (or {@code null}, if there was nothing to fold in), with the hash
+     * of the ratings it was computed from.
+     */
+    private static final class FoldedVector {
+        @Nullable
+        final double[] vector;
+        final long ratingHash;
+
+        FoldedVector(@Nullable double[] vec, long hash) {
+            vector = vec;
+            ratingHash = hash;
+        }
+    }
+}
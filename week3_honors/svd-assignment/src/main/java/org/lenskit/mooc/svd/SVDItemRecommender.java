@@ -0,0 +1,151 @@
+package org.lenskit.mooc.svd;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
+import org.lenskit.basic.AbstractItemRecommender;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.results.Results;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Item recommender that retrieves top-N lists directly from the SVD model, instead of scoring
+ * every candidate through the item scorer and sorting the results.  Scores are the same as those
+ * produced by {@link SVDItemScorer}.
+ *
+ * <p>When no candidate set is given, the whole catalog is searched, approximately if the model
+ * has an {@link ItemClusterIndex} and exactly otherwise.  By default, the items the user has
+ * already rated are excluded.  If {@link SVDItemScorer.FoldIn} is enabled, users who are not in
+ * the model are folded in by the same {@link SVDFoldIn} as in the scorer.
+ */
+public class SVDItemRecommender extends AbstractItemRecommender {
+    private static final Logger logger = LoggerFactory.getLogger(SVDItemRecommender.class);
+    private final SVDModel model;
+    private final BiasModel baseline;
+    private final DataAccessObject dao;
+    private final int probeCount;
+    private final double[] itemBiases;
+    @Nullable
+    private final SVDFoldIn foldIn;
+
+    /**
+     * Construct an SVD item recommender.
+     * @param m The model to use when generating recommendations.
+     * @param dao The data access object.
+     * @param bias The baseline bias model (providing means).
+     * @param probes The number of item clusters to search with approximate retrieval.
+     * @param folder The fold-in component.
+     * @param fold Whether to fold in users who are not in the model.
+     */
+    @Inject
+    public SVDItemRecommender(SVDModel m, DataAccessObject dao, BiasModel bias,
+                              @ItemClusterIndex.ProbeCount int probes,
+                              SVDFoldIn folder, @SVDItemScorer.FoldIn boolean fold) {
+        model = m;
+        baseline = bias;
+        this.dao = dao;
+        probeCount = probes;
+        foldIn = fold ? folder : null;
+
+        KeyIndex items = model.getItemIndexMapping();
+        itemBiases = new double[items.size()];
+        for (int i = 0; i < itemBiases.length; i++) {
+            itemBiases[i] = baseline.getItemBias(items.getKey(i));
+        }
+    }
+
+    @Override
+    protected List<Long> recommend(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        return recommendWithDetails(user, n, candidates, exclude).idList();
+    }
+
+    @Override
+    protected ResultList recommendWithDetails(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        int userRow = model.tryGetUserRow(user);
+        double[] uvec;
+        if (userRow >= 0) {
+            uvec = model.getUserFeatureVector(userRow);
+        } else {
+            uvec = foldIn != null ? foldIn.getUserVector(user) : null;
+        }
+        if (uvec == null) {
+            logger.debug("unknown user {}", user);
+            return Results.newResultList(Collections.<Result>emptyList());
+        }
+        if (exclude == null) {
+            exclude = getDefaultExcludes(user);
+        }
+
+        KeyIndex items = model.getItemIndexMapping();
+        int listSize = n < 0 ? items.size() : n;
+        TopNRows top;
+        if (candidates == null) {
+            final IntSet excludedRows = toRows(exclude);
+            IntPredicate accept = excludedRows.isEmpty() ? null : row -> !excludedRows.contains(row);
+            top = model.findTopItemsApproximate(uvec, listSize, itemBiases, accept, probeCount);
+        } else {
+            IntArrayList rows = new IntArrayList(candidates.size());
+            LongIterator iter = candidates.iterator();
+            while (iter.hasNext()) {
+                long item = iter.nextLong();
+                int row = model.tryGetItemRow(item);
+                if (row >= 0 && !exclude.contains(item)) {
+                    rows.add(row);
+                }
+            }
+            top = model.findTopItems(uvec, rows.toIntArray(), listSize, itemBiases);
+        }
+
+        double userBaseline = baseline.getIntercept() + baseline.getUserBias(user);
+        List<Result> results = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++) {
+            long item = items.getKey(top.getRow(i));
+            results.add(Results.create(item, userBaseline + top.getScore(i)));
+        }
+        return Results.newResultList(results);
+    }
+
+    /**
+     * Get the items to exclude by default: those the user has already rated.
+     * @param user The user ID.
+     * @return The set of items the user has rated.
+     */
+    private LongSet getDefaultExcludes(long user) {
+        LongSet rated = new LongOpenHashSet();
+        for (Rating r : dao.query(Rating.class)
+                           .withAttribute(CommonAttributes.USER_ID, user)
+                           .get()) {
+            rated.add(r.getItemId());
+        }
+        return rated;
+    }
+
+    private IntSet toRows(LongSet itemIds) {
+        IntSet rows = new IntOpenHashSet(itemIds.size());
+        LongIterator iter = itemIds.iterator();
+        while (iter.hasNext()) {
+            int row = model.tryGetItemRow(iter.nextLong());
+            if (row >= 0) {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+}
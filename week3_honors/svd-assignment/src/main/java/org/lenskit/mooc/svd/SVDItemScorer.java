@@ -1,44 +1,62 @@
 package org.lenskit.mooc.svd;
 
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
-import org.apache.commons.math3.linear.RealVector;
 import org.lenskit.api.Result;
+import org.lenskit.api.ResultList;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.bias.BiasModel;
-import org.lenskit.data.dao.DataAccessObject;
+import org.grouplens.grapht.annotation.DefaultBoolean;
+import org.lenskit.inject.Parameter;
 import org.lenskit.results.Results;
 import org.lenskit.util.collections.LongUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * SVD-based item scorer.
+ *
+ * <p>If {@link FoldIn} is enabled, users and items that are not in the model are folded in from
+ * their ratings in the DAO by {@link SVDFoldIn}, which caches the folded vectors.
  */
 public class SVDItemScorer extends AbstractItemScorer {
     private static final Logger logger = LoggerFactory.getLogger(SVDItemScorer.class);
+    private static final int BATCH_USER_BLOCK = 64;
+    private static final int BATCH_ITEM_BLOCK = 512;
     private final SVDModel model;
     private final BiasModel baseline;
-    private final DataAccessObject dao;
+    @Nullable
+    private final SVDFoldIn foldIn;
 
     /**
      * Construct an SVD item scorer using a model.
      * @param m The model to use when generating scores.
-     * @param dao The data access object.
      * @param bias The baseline bias model (providing means).
+     * @param folder The fold-in component.
+     * @param fold Whether to fold in users and items that are not in the model.
      */
     @Inject
-    public SVDItemScorer(SVDModel m, DataAccessObject dao,
-                         BiasModel bias) {
+    public SVDItemScorer(SVDModel m, BiasModel bias,
+                         SVDFoldIn folder, @FoldIn boolean fold) {
         model = m;
         baseline = bias;
-        this.dao = dao;
+        foldIn = fold ? folder : null;
     }
 
     /**
@@ -53,7 +71,8 @@ public class SVDItemScorer extends AbstractItemScorer {
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
-        RealVector userFeatures = model.getUserVector(user);
+        int userRow = model.tryGetUserRow(user);
+        double[] userFeatures = userRow >= 0 ? model.getUserFeatureVector(userRow) : getFoldedUser(user);
         if (userFeatures == null) {
             logger.debug("unknown user {}", user);
             return Results.newResultMap();
@@ -61,19 +80,274 @@ public class SVDItemScorer extends AbstractItemScorer {
 
         LongSet itemSet = LongUtils.asLongSet(items);
 
-        List<Result> results = new ArrayList<>();
+        List<Result> results = new ArrayList<>(itemSet.size());
+        double userBaseline = baseline.getIntercept() + baseline.getUserBias(user);
 
-        // My Code:
         // Compute the predictions
-        for(Long item : itemSet) {
-            double user_item_pred = userFeatures.ebeMultiply(model.getFeatureWeights()).dotProduct(model.getItemVector(item));
+        LongIterator iter = itemSet.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            int itemRow = model.tryGetItemRow(item);
+            double offset;
+            if (itemRow >= 0) {
+                offset = model.score(userFeatures, itemRow);
+            } else {
+                double[] itemFeatures = getFoldedItem(item);
+                if (itemFeatures == null) {
+                    continue;
+                }
+                offset = model.score(userFeatures, itemFeatures);
+            }
             // Add the predicted offsets to the baseline score
-            double pred = baseline.getIntercept() + baseline.getUserBias(user) + baseline.getItemBias(item) + user_item_pred;
-            Result r = Results.create(item, pred);
-            // Store the results in 'results'
-            results.add(r);
+            double pred = userBaseline + baseline.getItemBias(item) + offset;
+            results.add(Results.create(item, pred));
         }
 
         return Results.newResultMap(results);
     }
+
+    @Nullable
+    private double[] getFoldedUser(long user) {
+        return foldIn != null ? foldIn.getUserVector(user) : null;
+    }
+
+    @Nullable
+    private double[] getFoldedItem(long item) {
+        return foldIn != null ? foldIn.getItemVector(item) : null;
+    }
+
+    /**
+     * Compute top-N lists for a batch of users.  The scores are computed as a cache-blocked
+     * product of the user and item factor matrices, split across cores with the common fork-join
+     * pool.  Memory use is bounded by the block sizes, not the number of users: each block of
+     * users is streamed to the handler as soon as it is finished.
+     *
+     * @param users The users to score.
+     * @param items The candidate items.
+     * @param n The number of items to recommend to each user.
+     * @param handler The handler to receive each user's results.  It is called from worker
+     *                threads, possibly concurrently, exactly once for each user; users who
+     *                are not in the model are folded in and scored on the calling thread, and
+     *                those who cannot be folded in receive an empty list.  Candidate items
+     *                that are not in the model are folded in once, up front, and scored for
+     *                every user.
+     */
+    public void recommendBatch(@Nonnull Collection<Long> users, @Nonnull Collection<Long> items,
+                               int n, @Nonnull BatchResultHandler handler) {
+        LongSet itemSet = LongUtils.asLongSet(items);
+        IntArrayList rows = new IntArrayList(itemSet.size());
+        LongArrayList foldedIds = new LongArrayList();
+        List<double[]> foldedVecs = new ArrayList<>();
+        LongIterator iter = itemSet.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            int row = model.tryGetItemRow(item);
+            if (row >= 0) {
+                rows.add(row);
+            } else {
+                double[] vec = getFoldedItem(item);
+                if (vec != null) {
+                    foldedIds.add(item);
+                    foldedVecs.add(vec);
+                }
+            }
+        }
+        int[] itemRows = rows.toIntArray();
+        double[] itemOffsets = new double[itemRows.length];
+        for (int i = 0; i < itemRows.length; i++) {
+            itemOffsets[i] = baseline.getItemBias(model.getItemIndexMapping().getKey(itemRows[i]));
+        }
+        FoldedItems folded = new FoldedItems(foldedIds.toLongArray(),
+                                             foldedVecs.toArray(new double[foldedVecs.size()][]));
+        int listSize = Math.min(n, itemRows.length + folded.ids.length);
+
+        LongArrayList knownUsers = new LongArrayList(users.size());
+        IntArrayList userRows = new IntArrayList(users.size());
+        LongIterator uiter = LongUtils.asLongSet(users).iterator();
+        while (uiter.hasNext()) {
+            long user = uiter.nextLong();
+            int row = model.tryGetUserRow(user);
+            if (row >= 0) {
+                knownUsers.add(user);
+                userRows.add(row);
+            } else {
+                handler.handle(user, recommendFolded(user, itemRows, itemOffsets, folded, listSize));
+            }
+        }
+
+        logger.info("scoring {} users against {} items ({} folded in)",
+                    knownUsers.size(), itemRows.length + folded.ids.length, folded.ids.length);
+        BatchTask task = new BatchTask(knownUsers.toLongArray(), userRows.toIntArray(), 0, knownUsers.size(),
+                                       itemRows, itemOffsets, folded, listSize, handler);
+        ForkJoinPool.commonPool().invoke(task);
+    }
+
+    /**
+     * Compute the top-N list for a user who is not in the model, using their folded-in vector.
+     * @return The user's top-N items, or an empty list if the user cannot be folded in.
+     */
+    private ResultList recommendFolded(long user, int[] itemRows, double[] itemOffsets,
+                                       FoldedItems folded, int listSize) {
+        double[] uvec = getFoldedUser(user);
+        if (uvec == null) {
+            logger.debug("unknown user {}", user);
+            return Results.newResultList(Collections.<Result>emptyList());
+        }
+        TopNRows top = new TopNRows(Math.min(model.getCandidateCount(listSize), itemRows.length));
+        for (int i = 0; i < itemRows.length; i++) {
+            top.offer(i, model.score(uvec, itemRows[i]) + itemOffsets[i]);
+        }
+        top = model.rerank(uvec, top, itemRows, listSize, itemOffsets);
+        top = mergeFolded(uvec, top, itemRows.length, folded, listSize);
+        return toResults(user, top, itemRows, folded);
+    }
+
+    /**
+     * Merge the folded-in candidate items into a user's sorted top-N list.  Folded items are
+     * identified by positions past the end of the model candidate list.
+     * @return The merged, sorted top-N list.
+     */
+    private TopNRows mergeFolded(double[] uvec, TopNRows top, int nrows, FoldedItems folded, int listSize) {
+        if (folded.ids.length == 0) {
+            return top;
+        }
+        TopNRows merged = new TopNRows(listSize);
+        for (int i = 0; i < top.size(); i++) {
+            merged.offer(top.getRow(i), top.getScore(i));
+        }
+        for (int j = 0; j < folded.ids.length; j++) {
+            merged.offer(nrows + j, model.score(uvec, folded.vectors[j]) + folded.offsets[j]);
+        }
+        merged.sort();
+        return merged;
+    }
+
+    /**
+     * Convert a top-N list of positions in the candidate list (followed by the folded-in
+     * candidates) to a result list.
+     */
+    private ResultList toResults(long user, TopNRows top, int[] itemRows, FoldedItems folded) {
+        double userBaseline = baseline.getIntercept() + baseline.getUserBias(user);
+        List<Result> results = new ArrayList<>(top.size());
+        for (int i = 0; i < top.size(); i++) {
+            int pos = top.getRow(i);
+            long item = pos < itemRows.length
+                    ? model.getItemIndexMapping().getKey(itemRows[pos])
+                    : folded.ids[pos - itemRows.length];
+            results.add(Results.create(item, userBaseline + top.getScore(i)));
+        }
+        return Results.newResultList(results);
+    }
+
+    /**
+     * Candidate items of a batch that are not in the model, with their folded-in vectors and
+     * item biases.
+     */
+    private final class FoldedItems {
+        final long[] ids;
+        final double[][] vectors;
+        final double[] offsets;
+
+        FoldedItems(long[] ids, double[][] vectors) {
+            this.ids = ids;
+            this.vectors = vectors;
+            offsets = new double[ids.length];
+            for (int j = 0; j < ids.length; j++) {
+                offsets[j] = baseline.getItemBias(ids[j]);
+            }
+        }
+    }
+
+    /**
+     * Receives the results of batch scoring.  Implementations must be thread-safe.
+     */
+    public interface BatchResultHandler {
+        /**
+         * Handle one user's recommendations.
+         * @param user The user ID.
+         * @param results The user's top-N items, in decreasing order of score.
+         */
+        void handle(long user, ResultList results);
+    }
+
+    /**
+     * Fork-join task scoring a range of users.  Ranges are split in half until they fit in a
+     * single user block.
+     */
+    private class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final long[] userIds;
+        private final int[] userRows;
+        private final int start;
+        private final int end;
+        private final int[] itemRows;
+        private final double[] itemOffsets;
+        private final FoldedItems folded;
+        private final int listSize;
+        private final BatchResultHandler handler;
+
+        BatchTask(long[] uids, int[] urows, int start, int end,
+                  int[] irows, double[] ioffs, FoldedItems folded, int n, BatchResultHandler handler) {
+            userIds = uids;
+            userRows = urows;
+            this.start = start;
+            this.end = end;
+            itemRows = irows;
+            itemOffsets = ioffs;
+            this.folded = folded;
+            listSize = n;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start > BATCH_USER_BLOCK) {
+                int mid = (start + end) >>> 1;
+                invokeAll(new BatchTask(userIds, userRows, start, mid, itemRows, itemOffsets, folded, listSize, handler),
+                          new BatchTask(userIds, userRows, mid, end, itemRows, itemOffsets, folded, listSize, handler));
+                return;
+            }
+
+            final int nusers = end - start;
+            TopNRows[] tops = new TopNRows[nusers];
+            for (int u = 0; u < nusers; u++) {
+                tops[u] = new TopNRows(Math.min(model.getCandidateCount(listSize), itemRows.length));
+            }
+            double[] userBlock = model.getUserFeatureBlock(userRows, start, end);
+            double[] tile = new double[nusers * BATCH_ITEM_BLOCK];
+            for (int is = 0; is < itemRows.length; is += BATCH_ITEM_BLOCK) {
+                int ie = Math.min(is + BATCH_ITEM_BLOCK, itemRows.length);
+                int width = ie - is;
+                model.scoreTile(userBlock, nusers, itemRows, is, ie, tile);
+                for (int u = 0; u < nusers; u++) {
+                    TopNRows top = tops[u];
+                    for (int i = 0; i < width; i++) {
+                        // heap rows are positions in the candidate list
+                        top.offer(is + i, tile[u * width + i] + itemOffsets[is + i]);
+                    }
+                }
+            }
+
+            for (int u = 0; u < nusers; u++) {
+                long user = userIds[start + u];
+                double[] uvec = Arrays.copyOfRange(userBlock, u * model.getFeatureCount(),
+                                                   (u + 1) * model.getFeatureCount());
+                TopNRows top = model.rerank(uvec, tops[u], itemRows, listSize, itemOffsets);
+                top = mergeFolded(uvec, top, itemRows.length, folded, listSize);
+                handler.handle(user, toResults(user, top, itemRows, folded));
+            }
+        }
+    }
+
+    /**
+     * Whether to fold in users and items that were not present when the model was built.  Off by
+     * default, since each fold-in lookup reads the user's or item's ratings from the DAO.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Boolean.class)
+    @DefaultBoolean(false)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface FoldIn {}
 }
@@ -1,6 +1,9 @@
 package org.lenskit.mooc.svd;
 
 import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.MatrixUtils;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.RealVector;
 import org.grouplens.grapht.annotation.DefaultProvider;
@@ -9,19 +12,55 @@ import org.lenskit.util.keys.KeyIndex;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.util.Random;
+import java.util.function.IntPredicate;
 
 /**
  * SVD model for collaborative filtering.
+ *
+ * <p>The factors are stored as flat, row-major matrices: the user-feature matrix as is, and the
+ * item-feature matrix pre-multiplied by the singular values, so that a prediction offset is a
+ * single dot product between a user row and an item row.  The matrices are normally heap arrays,
+ * but a model opened with {@link SVDModelFormat} reads them from a memory-mapped file.
+ *
+ * <p>The model can also retrieve the top-N items for a user directly, either exactly (a bounded
+ * heap over a blocked matrix-vector product) or approximately through an optional
+ * {@link ItemClusterIndex} built with the model.
+ *
+ * <p>The item factors used for scoring can be stored in reduced precision (see
+ * {@link FactorPrecision}), which cuts the memory bandwidth of scoring.  The full-precision
+ * factors are kept as well: top-N searches collect extra candidates with the compact factors and
+ * re-rank them with the full-precision ones.  For a memory-mapped model, only the re-ranked rows
+ * of the full-precision matrix are paged in.  A heap model can instead drop the full-precision
+ * factors to save memory (see {@link ItemFactorRerank}), at the cost of the re-ranking.
+ *
+ * <p>Users and items that were not present when the model was built can be <em>folded in</em>:
+ * their residual ratings are projected onto the existing factors of the other side to produce a
+ * feature vector without retraining.  Projection assumes orthonormal factors; models whose factors
+ * are not (such as those trained by {@link ALSModelProvider}) instead fold in by regularized least
+ * squares, or do not support fold-in at all.  The model only computes folded vectors; caching
+ * them is up to the caller (see {@link SVDFoldIn}), so the shared model holds no mutable state.
  */
 @Shareable
 @DefaultProvider(SVDModelBuilder.class)
 public class SVDModel implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 5L;
+    private static final int SCORE_BLOCK_SIZE = 256;
+    private static final int RERANK_FACTOR = 4;
     private final KeyIndex userMapping;
     private final KeyIndex itemMapping;
-    private final RealMatrix userFeatureMatrix;
-    private final RealMatrix itemFeatureMatrix;
-    private final RealVector featureWeights;
+    private final int featureCount;
+    private final FactorMatrix userFeatures;
+    private final FactorMatrix itemFeatures;
+    private final FactorMatrix scoringItemFeatures;
+    private final double[] featureWeights;
+    @Nullable
+    private final ItemClusterIndex clusterIndex;
+    /**
+     * The regularization term of least-squares fold-in, 0 to fold in by projection, or NaN if
+     * the model does not support fold-in.
+     */
+    private final double foldInRegularization;
 
     /**
      * Construct an SVD model.  The matrices represent the decomposition, such that the predictions
@@ -41,9 +80,178 @@ public class SVDModel implements Serializable {
                                     imat.getColumnDimension(), weights.getDimension());
         userMapping = umap;
         itemMapping = imap;
-        userFeatureMatrix = umat;
-        itemFeatureMatrix = imat;
+        featureCount = weights.getDimension();
+        featureWeights = weights.toArray();
+        userFeatures = new ArrayFactorMatrix(umat.getRowDimension(), featureCount, flatten(umat, null));
+        itemFeatures = new ArrayFactorMatrix(imat.getRowDimension(), featureCount, flatten(imat, featureWeights));
+        scoringItemFeatures = itemFeatures;
+        clusterIndex = null;
+        foldInRegularization = 0;
+    }
+
+    /**
+     * Construct an SVD model from its stored representation.
+     *
+     * @param umap The mapping between user IDs and row numbers.
+     * @param imap The mapping between item IDs and row numbers.
+     * @param weights The singular values.
+     * @param umat The user feature matrix (users x features).
+     * @param imat The item feature matrix, scaled by the singular values (items x features).
+     * @param index The item cluster index, if any.
+     */
+    SVDModel(KeyIndex umap, KeyIndex imap, double[] weights,
+             FactorMatrix umat, FactorMatrix imat, @Nullable ItemClusterIndex index) {
+        this(umap, imap, weights, umat, imat, index, imat);
+    }
+
+    /**
+     * Construct an SVD model from its stored representation, with separate scoring factors.
+     *
+     * @param umap The mapping between user IDs and row numbers.
+     * @param imap The mapping between item IDs and row numbers.
+     * @param weights The singular values.
+     * @param umat The user feature matrix (users x features).
+     * @param imat The item feature matrix, scaled by the singular values (items x features).
+     * @param index The item cluster index, if any.
+     * @param scoring The (possibly reduced-precision) item feature matrix to score with.
+     */
+    SVDModel(KeyIndex umap, KeyIndex imap, double[] weights,
+             FactorMatrix umat, FactorMatrix imat, @Nullable ItemClusterIndex index,
+             FactorMatrix scoring) {
+        this(umap, imap, weights, umat, imat, index, scoring, 0);
+    }
+
+    /**
+     * Construct an SVD model from its stored representation, with separate scoring factors and a
+     * fold-in method.
+     *
+     * @param umap The mapping between user IDs and row numbers.
+     * @param imap The mapping between item IDs and row numbers.
+     * @param weights The singular values.
+     * @param umat The user feature matrix (users x features).
+     * @param imat The item feature matrix, scaled by the singular values (items x features).
+     * @param index The item cluster index, if any.
+     * @param scoring The (possibly reduced-precision) item feature matrix to score with.
+     * @param foldInReg The regularization term of least-squares fold-in, 0 to fold in by
+     *                  projection, or NaN to disable fold-in.
+     */
+    private SVDModel(KeyIndex umap, KeyIndex imap, double[] weights,
+                     FactorMatrix umat, FactorMatrix imat, @Nullable ItemClusterIndex index,
+                     FactorMatrix scoring, double foldInReg) {
+        Preconditions.checkArgument(umat.getColumnCount() == weights.length,
+                                    "user matrix has incorrect column dimension (%s != %s)",
+                                    umat.getColumnCount(), weights.length);
+        Preconditions.checkArgument(imat.getColumnCount() == weights.length,
+                                    "item matrix has incorrect column dimension (%s != %s)",
+                                    imat.getColumnCount(), weights.length);
+        Preconditions.checkArgument(umat.getRowCount() == umap.size(), "user matrix has incorrect row count");
+        Preconditions.checkArgument(imat.getRowCount() == imap.size(), "item matrix has incorrect row count");
+        userMapping = umap;
+        itemMapping = imap;
+        featureCount = weights.length;
         featureWeights = weights;
+        userFeatures = umat;
+        itemFeatures = imat;
+        scoringItemFeatures = scoring;
+        clusterIndex = index;
+        foldInRegularization = foldInReg;
+    }
+
+    /**
+     * Create a copy of this model with an item cluster index for approximate retrieval.
+     *
+     * @param nclusters The number of clusters.
+     * @param rng The random number generator for seeding the clustering.
+     * @return The new model, sharing this model's factors.
+     */
+    SVDModel withClusterIndex(int nclusters, Random rng) {
+        return new SVDModel(userMapping, itemMapping, featureWeights, userFeatures, itemFeatures,
+                            ItemClusterIndex.build(itemFeatures, nclusters, rng), scoringItemFeatures,
+                            foldInRegularization);
+    }
+
+    /**
+     * Create a copy of this model that scores items with reduced-precision item factors, keeping
+     * the full-precision factors to re-rank top-N candidates.
+     *
+     * @param precision The precision of the scoring factors.
+     * @return The new model, sharing this model's full-precision factors.
+     */
+    SVDModel withItemPrecision(FactorPrecision precision) {
+        return withItemPrecision(precision, true);
+    }
+
+    /**
+     * Create a copy of this model that scores items with reduced-precision item factors.
+     *
+     * @param precision The precision of the scoring factors.
+     * @param rerank Whether to keep the full-precision factors to re-rank top-N candidates.  If
+     *               {@code false} and they are on the heap, they are replaced by the compact ones,
+     *               which are then also used for fold-in and top-N lists.  Memory-mapped factors are
+     *               always kept.
+     * @return The new model.
+     */
+    SVDModel withItemPrecision(FactorPrecision precision, boolean rerank) {
+        if (precision == FactorPrecision.DOUBLE && scoringItemFeatures == itemFeatures) {
+            return this;
+        }
+        FactorMatrix scoring = precision.convert(itemFeatures);
+        boolean keep = rerank || itemFeatures instanceof MappedFactorMatrix;
+        FactorMatrix full = keep ? itemFeatures : scoring;
+        return new SVDModel(userMapping, itemMapping, featureWeights, userFeatures, full,
+                            clusterIndex, scoring, foldInRegularization);
+    }
+
+    /**
+     * Create a copy of this model that folds in users and items by regularized least squares,
+     * for factors that are not orthonormal.  A folded user's vector minimizes
+     * {@code |r - V x|^2 + reg * n * |x|^2} over their {@code n} ratings, the same weighted-lambda
+     * problem ALS solves in training (and likewise for items).  The feature weights must be 1.
+     *
+     * @param reg The regularization term.
+     * @return The new model, sharing this model's factors.
+     */
+    SVDModel withLeastSquaresFoldIn(double reg) {
+        Preconditions.checkArgument(reg > 0, "regularization must be positive");
+        for (double w : featureWeights) {
+            Preconditions.checkState(w == 1, "least-squares fold-in requires unit feature weights");
+        }
+        return new SVDModel(userMapping, itemMapping, featureWeights, userFeatures, itemFeatures,
+                            clusterIndex, scoringItemFeatures, reg);
+    }
+
+    /**
+     * Create a copy of this model that refuses to fold in users and items.
+     *
+     * @return The new model, sharing this model's factors.
+     */
+    SVDModel withoutFoldIn() {
+        return new SVDModel(userMapping, itemMapping, featureWeights, userFeatures, itemFeatures,
+                            clusterIndex, scoringItemFeatures, Double.NaN);
+    }
+
+    /**
+     * Copy a matrix into a row-major array, optionally scaling its columns.
+     */
+    private static double[] flatten(RealMatrix mat, @Nullable double[] scale) {
+        final int nrows = mat.getRowDimension();
+        final int ncols = mat.getColumnDimension();
+        double[] data = new double[nrows * ncols];
+        for (int i = 0; i < nrows; i++) {
+            for (int f = 0; f < ncols; f++) {
+                double v = mat.getEntry(i, f);
+                data[i * ncols + f] = scale != null ? v * scale[f] : v;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Get the number of latent features in this model.
+     * @return The number of features.
+     */
+    public int getFeatureCount() {
+        return featureCount;
     }
 
     /**
@@ -51,7 +259,7 @@ public class SVDModel implements Serializable {
      * @return The diagonal matrix of feature weights.
      */
     public RealVector getFeatureWeights() {
-        return featureWeights;
+        return new ArrayRealVector(featureWeights);
     }
 
     /**
@@ -63,9 +271,9 @@ public class SVDModel implements Serializable {
      */
     @Nullable
     public RealVector getUserVector(long user) {
-        long row = userMapping.tryGetIndex(user);
+        int row = userMapping.tryGetIndex(user);
         if (row >= 0) {
-            return userFeatureMatrix.getRowVector((int) row);
+            return new ArrayRealVector(getUserFeatureVector(row), false);
         } else {
             return null;
         }
@@ -73,16 +281,21 @@ public class SVDModel implements Serializable {
 
     /**
      * Get a item feature vector. This is a row vector whose values (columns) are the feature
-     * values for a particular item.
+     * values for a particular item.  Features with a zero singular value are reported as 0.
      *
      *
      * @param item The item ID.
      * @return The feature vector for item {@code item}.
      */
     public RealVector getItemVector(long item) {
-        long row = itemMapping.tryGetIndex(item);
+        int row = itemMapping.tryGetIndex(item);
         if (row >= 0) {
-            return itemFeatureMatrix.getRowVector((int) row);
+            double[] vec = new double[featureCount];
+            for (int f = 0; f < featureCount; f++) {
+                double w = featureWeights[f];
+                vec[f] = w != 0 ? itemFeatures.get(row, f) / w : 0;
+            }
+            return new ArrayRealVector(vec, false);
         } else {
             return null;
         }
@@ -91,19 +304,29 @@ public class SVDModel implements Serializable {
     /**
      * Get a item feature vector matrix.  Its rows are items and its columns are latent features.
      *
-     * @return The item-feature matrix (this must not be modified).
+     * @return A copy of the item-feature matrix.
      */
     public RealMatrix getItemFeatureMatrix() {
-        return itemFeatureMatrix;
+        RealMatrix mat = MatrixUtils.createRealMatrix(itemMapping.size(), featureCount);
+        for (int i = 0; i < itemMapping.size(); i++) {
+            mat.setRowVector(i, getItemVector(itemMapping.getKey(i)));
+        }
+        return mat;
     }
 
     /**
      * Get a user feature vector matrix.  Its rows are users and its columns are latent features.
      *
-     * @return The user-feature matrix (this must not be modified).
+     * @return A copy of the user-feature matrix.
      */
     public RealMatrix getUserFeatureMatrix() {
-        return userFeatureMatrix;
+        RealMatrix mat = MatrixUtils.createRealMatrix(userMapping.size(), featureCount);
+        for (int u = 0; u < userMapping.size(); u++) {
+            for (int f = 0; f < featureCount; f++) {
+                mat.setEntry(u, f, userFeatures.get(u, f));
+            }
+        }
+        return mat;
     }
 
     /**
@@ -131,4 +354,460 @@ public class SVDModel implements Serializable {
     public int getItemRow(long item) {
         return itemMapping.getIndex(item);
     }
+
+    /**
+     * Look up the row number for a user.
+     * @param user The user ID.
+     * @return The user's row number, or a negative value if the user is unknown.
+     */
+    public int tryGetUserRow(long user) {
+        return userMapping.tryGetIndex(user);
+    }
+
+    /**
+     * Look up the row number for an item.
+     * @param item The item ID.
+     * @return The item's row number, or a negative value if the item is unknown.
+     */
+    public int tryGetItemRow(long item) {
+        return itemMapping.tryGetIndex(item);
+    }
+
+    /**
+     * Compute the predicted offset for a user and item, {@code u * weights * i.transpose()}.
+     * This does not allocate.
+     *
+     * @param userRow The user's row number.
+     * @param itemRow The item's row number.
+     * @return The score offset from the baseline.
+     */
+    public double score(int userRow, int itemRow) {
+        return userFeatures.dot(userRow, scoringItemFeatures, itemRow);
+    }
+
+    /**
+     * Compute the predicted offset for a user feature vector and an item.  This does not allocate.
+     *
+     * @param userVector The user's feature vector (see {@link #getUserFeatureVector(int)}).
+     * @param itemRow The item's row number.
+     * @return The score offset from the baseline.
+     */
+    public double score(double[] userVector, int itemRow) {
+        return scoringItemFeatures.dot(itemRow, userVector, 0);
+    }
+
+    /**
+     * Get a copy of a user's feature vector.
+     * @param userRow The user's row number.
+     * @return The user's feature values.
+     */
+    public double[] getUserFeatureVector(int userRow) {
+        double[] vec = new double[featureCount];
+        userFeatures.getRow(userRow, vec, 0);
+        return vec;
+    }
+
+    /**
+     * Compute the predicted offset for a user feature vector and an item feature vector, such as
+     * a folded-in item.
+     *
+     * @param userVector The user's feature vector.
+     * @param itemVector The item's (scaled) feature vector.
+     * @return The score offset from the baseline.
+     */
+    public double score(double[] userVector, double[] itemVector) {
+        double sum = 0;
+        for (int f = 0; f < featureCount; f++) {
+            sum += userVector[f] * itemVector[f];
+        }
+        return sum;
+    }
+
+    /**
+     * Query whether this model can fold in new users and items.
+     * @return {@code true} if {@link #foldInUser(Long2DoubleMap)} and
+     *         {@link #foldInItem(Long2DoubleMap)} are supported.
+     */
+    public boolean canFoldIn() {
+        return !Double.isNaN(foldInRegularization);
+    }
+
+    /**
+     * Fold a new user into the model.  The user's vector is the projection of their residuals
+     * onto the item factors, {@code r * V * S^-1}, or the regularized least-squares fit to them
+     * (see {@link #withLeastSquaresFoldIn(double)}); residuals for items not in the model are
+     * ignored.
+     *
+     * @param itemResiduals The user's ratings, minus the baseline, keyed by item ID.
+     * @return The user's feature vector.
+     * @throws IllegalStateException if the model does not support fold-in.
+     */
+    public double[] foldInUser(Long2DoubleMap itemResiduals) {
+        Preconditions.checkState(canFoldIn(), "model does not support fold-in");
+        if (foldInRegularization > 0) {
+            return solveFoldIn(itemFeatures, itemMapping, itemResiduals);
+        }
+        double[] vec = new double[featureCount];
+        for (Long2DoubleMap.Entry e : itemResiduals.long2DoubleEntrySet()) {
+            int row = itemMapping.tryGetIndex(e.getLongKey());
+            if (row >= 0) {
+                double r = e.getDoubleValue();
+                for (int f = 0; f < featureCount; f++) {
+                    vec[f] += r * itemFeatures.get(row, f);
+                }
+            }
+        }
+        // item rows are scaled by S, so dividing by S^2 leaves V * S^-1
+        for (int f = 0; f < featureCount; f++) {
+            double w = featureWeights[f];
+            vec[f] = w != 0 ? vec[f] / (w * w) : 0;
+        }
+        return vec;
+    }
+
+    /**
+     * Fold a new item into the model.  The item's scaled vector is the projection of its
+     * residuals onto the user factors, {@code r^T * U}, or the regularized least-squares fit to
+     * them (see {@link #withLeastSquaresFoldIn(double)}); residuals from users not in the model
+     * are ignored.
+     *
+     * @param userResiduals The item's ratings, minus the baseline, keyed by user ID.
+     * @return The item's scaled feature vector.
+     * @throws IllegalStateException if the model does not support fold-in.
+     */
+    public double[] foldInItem(Long2DoubleMap userResiduals) {
+        Preconditions.checkState(canFoldIn(), "model does not support fold-in");
+        if (foldInRegularization > 0) {
+            return solveFoldIn(userFeatures, userMapping, userResiduals);
+        }
+        double[] vec = new double[featureCount];
+        for (Long2DoubleMap.Entry e : userResiduals.long2DoubleEntrySet()) {
+            int row = userMapping.tryGetIndex(e.getLongKey());
+            if (row >= 0) {
+                double r = e.getDoubleValue();
+                for (int f = 0; f < featureCount; f++) {
+                    vec[f] += r * userFeatures.get(row, f);
+                }
+            }
+        }
+        return vec;
+    }
+
+    /**
+     * Fit a feature vector to residuals by regularized least squares, with the other side's
+     * factors held fixed.
+     *
+     * @param fixed The factors of the other side.
+     * @param mapping The mapping of the residuals' keys to rows of {@code fixed}.
+     * @param residuals The residuals; those whose keys are not in the model are ignored.
+     * @return The fitted feature vector.
+     */
+    private double[] solveFoldIn(FactorMatrix fixed, KeyIndex mapping, Long2DoubleMap residuals) {
+        final int k = featureCount;
+        double[] a = new double[k * k];
+        double[] b = new double[k];
+        double[] row = new double[k];
+        int n = 0;
+        for (Long2DoubleMap.Entry e : residuals.long2DoubleEntrySet()) {
+            int idx = mapping.tryGetIndex(e.getLongKey());
+            if (idx >= 0) {
+                fixed.getRow(idx, row, 0);
+                ALSModelProvider.addObservation(a, b, row, 0, 1, e.getDoubleValue(), k);
+                n += 1;
+            }
+        }
+        for (int f = 0; f < k; f++) {
+            a[f * k + f] += foldInRegularization * Math.max(n, 1);
+        }
+        ALSModelProvider.choleskySolve(a, b, k);
+        return b;
+    }
+
+    /**
+     * Query whether this model has an item cluster index for approximate retrieval.
+     * @return {@code true} if approximate retrieval is available.
+     */
+    public boolean hasClusterIndex() {
+        return clusterIndex != null;
+    }
+
+    /**
+     * Find the top-N items for a user by scoring every item.  Items are scored in blocks, and
+     * each block's scores are pushed through a bounded heap.
+     *
+     * @param userRow The user's row number.
+     * @param n The number of items to find.
+     * @param itemOffsets Additional per-item score offsets (such as item biases), indexed by item
+     *                    row, or {@code null} for none.
+     * @param accept A filter on item rows, or {@code null} to accept all items.
+     * @return The top items, sorted by decreasing score (offset plus item offset).
+     */
+    public TopNRows findTopItems(int userRow, int n, @Nullable double[] itemOffsets,
+                                 @Nullable IntPredicate accept) {
+        return findTopItems(getUserFeatureVector(userRow), n, itemOffsets, accept);
+    }
+
+    /**
+     * Find the top-N items for a user feature vector, such as a folded-in user, by scoring every
+     * item.
+     *
+     * @param uvec The user's feature vector.
+     * @param n The number of items to find.
+     * @param itemOffsets Additional per-item score offsets, indexed by item row, or {@code null}.
+     * @param accept A filter on item rows, or {@code null} to accept all items.
+     * @return The top items, sorted by decreasing score.
+     * @see #findTopItems(int, int, double[], IntPredicate)
+     */
+    public TopNRows findTopItems(double[] uvec, int n, @Nullable double[] itemOffsets,
+                                 @Nullable IntPredicate accept) {
+        final int nitems = itemMapping.size();
+        TopNRows top = new TopNRows(Math.min(getCandidateCount(n), nitems));
+        double[] block = new double[SCORE_BLOCK_SIZE];
+        for (int start = 0; start < nitems; start += SCORE_BLOCK_SIZE) {
+            int end = Math.min(start + SCORE_BLOCK_SIZE, nitems);
+            scoreBlock(uvec, start, end, block);
+            for (int i = start; i < end; i++) {
+                double score = block[i - start];
+                if (itemOffsets != null) {
+                    score += itemOffsets[i];
+                }
+                if (score > top.threshold() && (accept == null || accept.test(i))) {
+                    top.offer(i, score);
+                }
+            }
+        }
+        return rerank(uvec, top, null, n, itemOffsets);
+    }
+
+    /**
+     * Find the top-N items for a user among a set of candidate items.
+     *
+     * @param userRow The user's row number.
+     * @param candidateRows The item rows to consider.
+     * @param n The number of items to find.
+     * @param itemOffsets Additional per-item score offsets, or {@code null} for none.
+     * @return The top items, sorted by decreasing score.
+     */
+    public TopNRows findTopItems(int userRow, int[] candidateRows, int n,
+                                 @Nullable double[] itemOffsets) {
+        return findTopItems(getUserFeatureVector(userRow), candidateRows, n, itemOffsets);
+    }
+
+    /**
+     * Find the top-N items for a user feature vector among a set of candidate items.
+     *
+     * @param uvec The user's feature vector.
+     * @param candidateRows The item rows to consider.
+     * @param n The number of items to find.
+     * @param itemOffsets Additional per-item score offsets, or {@code null} for none.
+     * @return The top items, sorted by decreasing score.
+     */
+    public TopNRows findTopItems(double[] uvec, int[] candidateRows, int n,
+                                 @Nullable double[] itemOffsets) {
+        TopNRows top = new TopNRows(Math.min(getCandidateCount(n), candidateRows.length));
+        for (int row : candidateRows) {
+            double score = score(uvec, row);
+            if (itemOffsets != null) {
+                score += itemOffsets[row];
+            }
+            top.offer(row, score);
+        }
+        return rerank(uvec, top, null, n, itemOffsets);
+    }
+
+    /**
+     * Find approximate top-N items for a user using the item cluster index.  Only the items in
+     * the {@code probes} clusters whose centroids best match the user are scored.  If the model
+     * has no cluster index, this is the same as the exact search.
+     *
+     * @param userRow The user's row number.
+     * @param n The number of items to find.
+     * @param itemOffsets Additional per-item score offsets, or {@code null} for none.
+     * @param accept A filter on item rows, or {@code null} to accept all items.
+     * @param probes The number of clusters to search.
+     * @return The top items found, sorted by decreasing score.
+     */
+    public TopNRows findTopItemsApproximate(int userRow, int n, @Nullable double[] itemOffsets,
+                                            @Nullable IntPredicate accept, int probes) {
+        return findTopItemsApproximate(getUserFeatureVector(userRow), n, itemOffsets, accept, probes);
+    }
+
+    /**
+     * Find approximate top-N items for a user feature vector using the item cluster index.
+     *
+     * @param uvec The user's feature vector.
+     * @param n The number of items to find.
+     * @param itemOffsets Additional per-item score offsets, or {@code null} for none.
+     * @param accept A filter on item rows, or {@code null} to accept all items.
+     * @param probes The number of clusters to search.
+     * @return The top items found, sorted by decreasing score.
+     * @see #findTopItemsApproximate(int, int, double[], IntPredicate, int)
+     */
+    public TopNRows findTopItemsApproximate(double[] uvec, int n, @Nullable double[] itemOffsets,
+                                            @Nullable IntPredicate accept, int probes) {
+        if (clusterIndex == null) {
+            return findTopItems(uvec, n, itemOffsets, accept);
+        }
+
+        TopNRows clusters = clusterIndex.rankClusters(uvec, 0, probes);
+        TopNRows top = new TopNRows(Math.min(getCandidateCount(n), itemMapping.size()));
+        for (int ci = 0; ci < clusters.size(); ci++) {
+            int cluster = clusters.getRow(ci);
+            for (int p = clusterIndex.getClusterStart(cluster), end = clusterIndex.getClusterEnd(cluster);
+                 p < end; p++) {
+                int row = clusterIndex.getItemRow(p);
+                if (accept != null && !accept.test(row)) {
+                    continue;
+                }
+                double score = score(uvec, row);
+                if (itemOffsets != null) {
+                    score += itemOffsets[row];
+                }
+                top.offer(row, score);
+            }
+        }
+        return rerank(uvec, top, null, n, itemOffsets);
+    }
+
+    /**
+     * Get the number of candidates a top-N search should collect before re-ranking.
+     * @param n The number of items to find.
+     * @return The number of candidates: {@code n} if items are scored in full precision, and a
+     *         multiple of {@code n} otherwise.
+     */
+    int getCandidateCount(int n) {
+        if (scoringItemFeatures == itemFeatures || n <= 0) {
+            return n;
+        }
+        return n > Integer.MAX_VALUE / RERANK_FACTOR ? Integer.MAX_VALUE : n * RERANK_FACTOR;
+    }
+
+    /**
+     * Re-rank top-N candidates with the full-precision item factors.  If the model scores in full
+     * precision, this only sorts the candidates.
+     *
+     * @param uvec The user's feature vector.
+     * @param candidates The candidates found with the scoring factors.  Their rows are item rows,
+     *                   or positions in {@code itemRows} if it is given.
+     * @param itemRows The item rows of the candidate positions, or {@code null} if the candidates
+     *                 are item rows.
+     * @param n The number of items to keep.
+     * @param itemOffsets Additional score offsets, indexed like the candidate rows, or {@code null}.
+     * @return The top {@code n} candidates, sorted by decreasing full-precision score.
+     */
+    TopNRows rerank(double[] uvec, TopNRows candidates, @Nullable int[] itemRows, int n,
+                    @Nullable double[] itemOffsets) {
+        if (scoringItemFeatures == itemFeatures) {
+            candidates.sort();
+            return candidates;
+        }
+        TopNRows top = new TopNRows(Math.min(n, candidates.size()));
+        for (int i = 0; i < candidates.size(); i++) {
+            int pos = candidates.getRow(i);
+            double score = itemFeatures.dot(itemRows != null ? itemRows[pos] : pos, uvec, 0);
+            if (itemOffsets != null) {
+                score += itemOffsets[pos];
+            }
+            top.offer(pos, score);
+        }
+        top.sort();
+        return top;
+    }
+
+    /**
+     * Compute the score offsets of a user for a contiguous block of item rows.
+     *
+     * @param uvec The user's feature vector.
+     * @param startRow The first item row (inclusive).
+     * @param endRow The last item row (exclusive).
+     * @param out The output array; scores are stored starting at index 0.
+     */
+    void scoreBlock(double[] uvec, int startRow, int endRow, double[] out) {
+        for (int i = startRow; i < endRow; i++) {
+            out[i - startRow] = scoringItemFeatures.dot(i, uvec, 0);
+        }
+    }
+
+    /**
+     * Copy the feature vectors of a block of users into a single row-major array.
+     *
+     * @param userRows The user row numbers.
+     * @param start The first position in {@code userRows} (inclusive).
+     * @param end The last position in {@code userRows} (exclusive).
+     * @return The users' feature vectors, one after another.
+     */
+    double[] getUserFeatureBlock(int[] userRows, int start, int end) {
+        double[] block = new double[(end - start) * featureCount];
+        for (int u = start; u < end; u++) {
+            userFeatures.getRow(userRows[u], block, (u - start) * featureCount);
+        }
+        return block;
+    }
+
+    /**
+     * Compute a tile of the score matrix for a block of users and a block of items.  This is the
+     * kernel of batch scoring: the item block is reused across every user in the user block, so
+     * it stays in cache while the tile is computed.
+     *
+     * @param userBlock The users' feature vectors (see {@link #getUserFeatureBlock(int[], int, int)}).
+     * @param nusers The number of users in the block.
+     * @param itemRows The item row numbers.
+     * @param itemStart The first position in {@code itemRows} (inclusive).
+     * @param itemEnd The last position in {@code itemRows} (exclusive).
+     * @param out The output tile, in row-major order with one row per user and
+     *            {@code itemEnd - itemStart} columns.
+     */
+    void scoreTile(double[] userBlock, int nusers,
+                   int[] itemRows, int itemStart, int itemEnd, double[] out) {
+        final int width = itemEnd - itemStart;
+        for (int u = 0; u < nusers; u++) {
+            final int uoff = u * featureCount;
+            final int tileRow = u * width;
+            for (int i = itemStart; i < itemEnd; i++) {
+                out[tileRow + i - itemStart] = scoringItemFeatures.dot(itemRows[i], userBlock, uoff);
+            }
+        }
+    }
+
+    /**
+     * Get the singular values.
+     * @return The singular value array (must not be modified).
+     */
+    double[] getFeatureWeightArray() {
+        return featureWeights;
+    }
+
+    /**
+     * Get the user-feature matrix.
+     * @return The user-feature matrix.
+     */
+    FactorMatrix getUserFactors() {
+        return userFeatures;
+    }
+
+    /**
+     * Get the item-feature matrix, scaled by the singular values.
+     * @return The scaled item-feature matrix.
+     */
+    FactorMatrix getItemFactors() {
+        return itemFeatures;
+    }
+
+    /**
+     * Get the fold-in regularization term.
+     * @return The regularization term of least-squares fold-in, 0 if the model folds in by
+     *         projection, or NaN if it does not support fold-in.
+     */
+    double getFoldInRegularization() {
+        return foldInRegularization;
+    }
+
+    /**
+     * Get the item cluster index.
+     * @return The cluster index, or {@code null} if the model has none.
+     */
+    @Nullable
+    ItemClusterIndex getClusterIndex() {
+        return clusterIndex;
+    }
 }
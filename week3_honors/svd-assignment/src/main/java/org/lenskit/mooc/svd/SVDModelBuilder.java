@@ -1,12 +1,10 @@
 package org.lenskit.mooc.svd;
 
-import org.apache.commons.math3.linear.*;
 import org.lenskit.bias.BiasModel;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.entities.CommonTypes;
 import org.lenskit.data.ratings.Rating;
 import org.lenskit.inject.Transient;
-import org.lenskit.util.io.ObjectStream;
 import org.lenskit.util.keys.FrozenHashKeyIndex;
 import org.lenskit.util.keys.KeyIndex;
 import org.slf4j.Logger;
@@ -14,6 +12,7 @@ import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.util.Random;
 
 /**
  * Model builder that computes the SVD model.
@@ -24,20 +23,40 @@ public class SVDModelBuilder implements Provider<SVDModel> {
     private final DataAccessObject dao;
     private final BiasModel baseline;
     private final int featureCount;
+    private final SVDSolver solver;
+    private final int clusterCount;
+    private final FactorPrecision itemPrecision;
+    private final boolean rerank;
+    private final Random random;
 
     /**
      * Construct the model builder.
      * @param dao The data access object.
      * @param bias The bias model to use as a baseline.
      * @param nfeatures The number of latent features to train.
+     * @param solver The solver used to decompose the rating matrix.
+     * @param nclusters The number of item clusters to index for approximate retrieval (0 for none).
+     * @param precision The precision of the item factors used for scoring.
+     * @param rerank Whether to keep the full-precision item factors to re-rank top-N lists.
+     * @param rng The random number generator.
      */
     @Inject
     public SVDModelBuilder(@Transient DataAccessObject dao,
                            @Transient BiasModel bias,
-                           @LatentFeatureCount int nfeatures) {
+                           @LatentFeatureCount int nfeatures,
+                           @Transient SVDSolver solver,
+                           @ItemClusterIndex.ClusterCount int nclusters,
+                           @ItemFactorPrecision String precision,
+                           @ItemFactorRerank boolean rerank,
+                           @Transient Random rng) {
         this.dao = dao;
         baseline = bias;
         featureCount = nfeatures;
+        this.solver = solver;
+        clusterCount = nclusters;
+        itemPrecision = FactorPrecision.fromName(precision);
+        this.rerank = rerank;
+        random = rng;
     }
 
     /**
@@ -47,6 +66,15 @@ public class SVDModelBuilder implements Provider<SVDModel> {
      */
     @Override
     public SVDModel get() {
+        return build().withItemPrecision(itemPrecision, rerank);
+    }
+
+    /**
+     * Build the SVD model with full-precision item factors, ignoring {@link ItemFactorPrecision}.
+     *
+     * @return A singular value decomposition recommender model.
+     */
+    SVDModel build() {
         // Create index mappings of user and item IDs.
         // You can use these to find row and columns in the matrix based on user/item IDs.
         KeyIndex userIndex = FrozenHashKeyIndex.create(dao.getEntityIds(CommonTypes.USER));
@@ -55,29 +83,20 @@ public class SVDModelBuilder implements Provider<SVDModel> {
         // We have to do 2 things:
         // First, prepare a matrix containing the rating data.
         // You will implement createRatingMatrix
-        RealMatrix matrix = createRatingMatrix(userIndex, itemIndex);
+        SparseMatrix matrix = createRatingMatrix(userIndex, itemIndex);
 
-        // Second, compute its factorization
-        logger.info("factorizing matrix");
-        SingularValueDecomposition svd = new SingularValueDecomposition(matrix);
-        logger.info("decomposed matrix has rank {}", svd.getRank());
+        // Second, compute its (truncated) factorization
+        SVDResult svd = solver.decompose(matrix, featureCount);
 
-        // Third, truncate the decomposed matrix
-        RealMatrix userMatrix = svd.getU();
-        RealMatrix itemMatrix = svd.getV();
-        RealVector weights = new ArrayRealVector(svd.getSingularValues());
-        if (featureCount > 0) {
-            logger.info("truncating matrix to {} features", featureCount);
-            // My Code:
-            // Use the getSubMatrix method to truncate the user and item matrices
-            userMatrix = userMatrix.getSubMatrix(0, userMatrix.getRowDimension()-1, 0, featureCount-1);
-            itemMatrix = itemMatrix.getSubMatrix(0, itemMatrix.getRowDimension()-1, 0, featureCount-1);
-            weights = weights.getSubVector(0, featureCount);
-        }
+        SVDModel model = new SVDModel(userIndex, itemIndex,
+                                      svd.getU(), svd.getV(),
+                                      svd.getSingularValues());
 
-        return new SVDModel(userIndex, itemIndex,
-                            userMatrix, itemMatrix,
-                            weights);
+        // Finally, index the items for approximate top-N retrieval if requested
+        if (clusterCount > 0) {
+            model = model.withClusterIndex(clusterCount, random);
+        }
+        return model;
     }
 
     /**
@@ -86,28 +105,10 @@ public class SVDModelBuilder implements Provider<SVDModel> {
      *
      * @param userIndex The index mapping of user IDs to row numbers.
      * @param itemIndex The index mapping of item IDs to column numbers.
-     * @return A matrix storing the <i>normalized</i> user ratings.
+     * @return A sparse matrix storing the <i>normalized</i> user ratings.
      */
-    private RealMatrix createRatingMatrix(KeyIndex userIndex, KeyIndex itemIndex) {
-        final int nusers = userIndex.size();
-        final int nitems = itemIndex.size();
-
-        // Create a matrix with users on rows and items on columns
-        logger.info("creating {} by {} rating matrix", nusers, nitems);
-        RealMatrix matrix = MatrixUtils.createRealMatrix(nusers, nitems);
-
-        // populate it with data
-        try (ObjectStream<Rating> ratings = dao.query(Rating.class)
-                                               .stream()) {
-            // My Code:
-            // Put this user's ratings into the matrix
-            for (Rating rating : ratings) {
-                matrix.setEntry(userIndex.getIndex(rating.getUserId()), itemIndex.getIndex(rating.getItemId()),
-                        rating.getValue() -
-                                (baseline.getIntercept() + baseline.getItemBias(rating.getItemId()) + baseline.getUserBias(rating.getUserId())));
-            }
-        }
-
-        return matrix;
+    private SparseMatrix createRatingMatrix(KeyIndex userIndex, KeyIndex itemIndex) {
+        ResidualMatrixBuilder builder = new ResidualMatrixBuilder(userIndex, itemIndex, baseline);
+        return builder.build(dao.query(Rating.class).get());
     }
 }
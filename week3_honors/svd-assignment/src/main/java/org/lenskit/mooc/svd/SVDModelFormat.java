@@ -0,0 +1,298 @@
+package org.lenskit.mooc.svd;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.util.keys.FrozenHashKeyIndex;
+import org.lenskit.util.keys.KeyIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Binary file format for SVD models.  A model file can be memory-mapped, so the factor matrices
+ * are paged in on demand instead of being deserialized onto the heap, and several processes
+ * serving the same model share one copy of it.
+ *
+ * <p>All values are little-endian.  The file consists of:
+ *
+ * <ol>
+ * <li>a 48-byte header: the magic number, the format version, the feature count, the user count,
+ * the item count, a flags word, the cluster count, and a reserved word (all 4-byte ints), followed
+ * by the fingerprint of the training data the model was built from (an 8-byte long, 0 if
+ * unknown) and the fold-in regularization term (an 8-byte double: 0 to fold in by projection,
+ * NaN if the model does not support fold-in);</li>
+ * <li>the user IDs and the item IDs, in row order (8-byte longs);</li>
+ * <li>the singular values (8-byte doubles);</li>
+ * <li>the user-feature matrix and the scaled item-feature matrix, row-major (8-byte doubles);</li>
+ * <li>if the {@linkplain #FLAG_CLUSTER_INDEX cluster index flag} is set, the cluster centroids
+ * (8-byte doubles), followed by the cluster offsets and cluster rows (4-byte ints).</li>
+ * </ol>
+ *
+ * The header and every section of 8-byte values start on an 8-byte boundary, so the factor
+ * matrices can be mapped as aligned doubles; the cluster offsets and rows at the end of the file
+ * are only 4-byte aligned.  The user and item ID lists and the cluster index are loaded onto the
+ * heap when a file is opened; only the factor matrices stay mapped.
+ */
+public final class SVDModelFormat {
+    private static final Logger logger = LoggerFactory.getLogger(SVDModelFormat.class);
+
+    /**
+     * The magic number at the start of every model file ("SVDM").
+     */
+    public static final int MAGIC = 0x5356444D;
+    /**
+     * The current format version.  Files with a different version are rejected.
+     */
+    public static final int VERSION = 3;
+    /**
+     * Header flag indicating that the file contains an item cluster index.
+     */
+    public static final int FLAG_CLUSTER_INDEX = 0x1;
+
+    private static final int HEADER_SIZE = 48;
+    private static final int FINGERPRINT_OFFSET = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private SVDModelFormat() {}
+
+    /**
+     * Write a model to a file, with no training data fingerprint.
+     *
+     * @param model The model to write.
+     * @param file The output file.
+     * @throws IOException if there is an error writing the file.
+     * @see #write(SVDModel, File, long)
+     */
+    public static void write(SVDModel model, File file) throws IOException {
+        write(model, file, 0);
+    }
+
+    /**
+     * Write a model to a file.  The file is written to a uniquely-named temporary file alongside
+     * it and then moved into place, so a reader never sees a partially-written model and
+     * concurrent writers do not interfere.  The item factors are written as the model holds
+     * them, so a heap model that has dropped its full-precision item factors (see
+     * {@link ItemFactorRerank}) is stored at reduced precision.
+     *
+     * @param model The model to write.
+     * @param file The output file.
+     * @param fingerprint The fingerprint of the training data the model was built from.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void write(SVDModel model, File file, long fingerprint) throws IOException {
+        KeyIndex users = model.getUserIndexMapping();
+        KeyIndex items = model.getItemIndexMapping();
+        ItemClusterIndex clusters = model.getClusterIndex();
+        int k = model.getFeatureCount();
+        logger.info("writing SVD model with {} users, {} items and {} features to {}",
+                    users.size(), items.size(), k, file);
+
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create directory " + dir);
+        }
+        File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+            buf.putInt(MAGIC)
+               .putInt(VERSION)
+               .putInt(k)
+               .putInt(users.size())
+               .putInt(items.size())
+               .putInt(clusters != null ? FLAG_CLUSTER_INDEX : 0)
+               .putInt(clusters != null ? clusters.getClusterCount() : 0)
+               .putInt(0)
+               .putLong(fingerprint)
+               .putDouble(model.getFoldInRegularization());
+
+            for (int i = 0; i < users.size(); i++) {
+                buf = ensure(channel, buf, 8).putLong(users.getKey(i));
+            }
+            for (int i = 0; i < items.size(); i++) {
+                buf = ensure(channel, buf, 8).putLong(items.getKey(i));
+            }
+            for (double w : model.getFeatureWeightArray()) {
+                buf = ensure(channel, buf, 8).putDouble(w);
+            }
+            buf = writeMatrix(channel, buf, model.getUserFactors());
+            buf = writeMatrix(channel, buf, model.getItemFactors());
+
+            if (clusters != null) {
+                for (double c : clusters.getCentroids()) {
+                    buf = ensure(channel, buf, 8).putDouble(c);
+                }
+                for (int off : clusters.getClusterOffsets()) {
+                    buf = ensure(channel, buf, 4).putInt(off);
+                }
+                for (int row : clusters.getClusterRows()) {
+                    buf = ensure(channel, buf, 4).putInt(row);
+                }
+            }
+            flush(channel, buf);
+            channel.force(true);
+        } catch (IOException | RuntimeException e) {
+            if (!tmp.delete()) {
+                logger.warn("could not delete temporary file {}", tmp);
+            }
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Read the training data fingerprint of a model file.
+     *
+     * @param file The model file.
+     * @return The fingerprint stored when the model was written.
+     * @throws IOException if there is an error reading the file, or it is not a valid model file.
+     */
+    public static long readFingerprint(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + ": not an SVD model file");
+            }
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            checkHeader(file, header);
+            return header.getLong(FINGERPRINT_OFFSET);
+        }
+    }
+
+    /**
+     * Check the magic number and version of a header, leaving the buffer positioned after them.
+     */
+    private static void checkHeader(File file, ByteBuffer header) throws IOException {
+        int magic = header.getInt();
+        if (magic != MAGIC) {
+            throw new IOException(file + ": not an SVD model file");
+        }
+        int version = header.getInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("%s: unsupported model version %d (expected %d)",
+                                                file, version, VERSION));
+        }
+    }
+
+    /**
+     * Open a model file.  The factor matrices are memory-mapped; they remain valid after this
+     * method returns, until the model is garbage-collected.
+     *
+     * @param file The model file.
+     * @return The model.
+     * @throws IOException if there is an error reading the file, or it is not a valid model file.
+     */
+    public static SVDModel open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(file + ": not an SVD model file");
+            }
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            checkHeader(file, header);
+            int k = header.getInt();
+            int nusers = header.getInt();
+            int nitems = header.getInt();
+            int flags = header.getInt();
+            int nclusters = header.getInt();
+            double foldInReg = header.getDouble(FINGERPRINT_OFFSET + 8);
+
+            long pos = HEADER_SIZE;
+            long userPos = pos + 8L * (nusers + nitems) + 8L * k;
+            long itemPos = userPos + 8L * nusers * k;
+            long clusterPos = itemPos + 8L * nitems * k;
+            long expected = clusterPos;
+            if ((flags & FLAG_CLUSTER_INDEX) != 0) {
+                expected += 8L * nclusters * k + 4L * (nclusters + 1) + 4L * nitems;
+            }
+            if (channel.size() != expected) {
+                throw new IOException(String.format("%s: expected %d bytes, found %d",
+                                                    file, expected, channel.size()));
+            }
+            logger.info("mapping SVD model with {} users, {} items and {} features from {}",
+                        nusers, nitems, k, file);
+
+            ByteBuffer ids = read(channel, pos, 8L * (nusers + nitems));
+            LongArrayList userIds = new LongArrayList(nusers);
+            for (int i = 0; i < nusers; i++) {
+                userIds.add(ids.getLong());
+            }
+            LongArrayList itemIds = new LongArrayList(nitems);
+            for (int i = 0; i < nitems; i++) {
+                itemIds.add(ids.getLong());
+            }
+            pos += 8L * (nusers + nitems);
+
+            double[] weights = new double[k];
+            read(channel, pos, 8L * k).asDoubleBuffer().get(weights);
+
+            FactorMatrix umat = MappedFactorMatrix.map(channel, userPos, nusers, k);
+            FactorMatrix imat = MappedFactorMatrix.map(channel, itemPos, nitems, k);
+
+            ItemClusterIndex clusters = null;
+            if ((flags & FLAG_CLUSTER_INDEX) != 0) {
+                double[] centroids = new double[nclusters * k];
+                int[] offsets = new int[nclusters + 1];
+                int[] rows = new int[nitems];
+                ByteBuffer cbuf = read(channel, clusterPos, expected - clusterPos);
+                cbuf.asDoubleBuffer().get(centroids);
+                cbuf.position(8 * centroids.length);
+                cbuf.asIntBuffer().get(offsets).get(rows);
+                clusters = new ItemClusterIndex(k, centroids, offsets, rows);
+            }
+
+            SVDModel model = new SVDModel(FrozenHashKeyIndex.create(userIds), FrozenHashKeyIndex.create(itemIds),
+                                          weights, umat, imat, clusters);
+            if (Double.isNaN(foldInReg)) {
+                model = model.withoutFoldIn();
+            } else if (foldInReg > 0) {
+                model = model.withLeastSquaresFoldIn(foldInReg);
+            }
+            return model;
+        }
+    }
+
+    private static ByteBuffer writeMatrix(FileChannel channel, ByteBuffer buf, FactorMatrix mat) throws IOException {
+        final int k = mat.getColumnCount();
+        final int n = mat.getRowCount();
+        for (int r = 0; r < n; r++) {
+            for (int f = 0; f < k; f++) {
+                buf = ensure(channel, buf, 8).putDouble(mat.get(r, f));
+            }
+        }
+        return buf;
+    }
+
+    /**
+     * Make sure a buffer has room for more values, flushing it to the channel if needed.
+     */
+    private static ByteBuffer ensure(FileChannel channel, ByteBuffer buf, int bytes) throws IOException {
+        if (buf.remaining() < bytes) {
+            flush(channel, buf);
+        }
+        return buf;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buf) throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length)
+                      .order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,62 @@
+package org.lenskit.mooc.svd;
+
+import com.google.common.base.Preconditions;
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.RealVector;
+
+/**
+ * The result of a singular value decomposition {@code A ~ U S V<sup>T</sup>}.
+ */
+public class SVDResult {
+    private final RealMatrix leftVectors;
+    private final RealMatrix rightVectors;
+    private final RealVector singularValues;
+
+    /**
+     * Construct a decomposition result.
+     * @param u The left singular vectors (rows x rank).
+     * @param v The right singular vectors (columns x rank).
+     * @param s The singular values.
+     */
+    public SVDResult(RealMatrix u, RealMatrix v, RealVector s) {
+        Preconditions.checkArgument(u.getColumnDimension() == s.getDimension(),
+                                    "left vectors have incorrect column dimension");
+        Preconditions.checkArgument(v.getColumnDimension() == s.getDimension(),
+                                    "right vectors have incorrect column dimension");
+        leftVectors = u;
+        rightVectors = v;
+        singularValues = s;
+    }
+
+    /**
+     * Get the left singular vectors.
+     * @return The matrix {@code U}, with one column per singular value.
+     */
+    public RealMatrix getU() {
+        return leftVectors;
+    }
+
+    /**
+     * Get the right singular vectors.
+     * @return The matrix {@code V}, with one column per singular value.
+     */
+    public RealMatrix getV() {
+        return rightVectors;
+    }
+
+    /**
+     * Get the singular values.
+     * @return The singular values, in decreasing order.
+     */
+    public RealVector getSingularValues() {
+        return singularValues;
+    }
+
+    /**
+     * Get the number of singular values in this decomposition.
+     * @return The rank of the decomposition.
+     */
+    public int getRank() {
+        return singularValues.getDimension();
+    }
+}
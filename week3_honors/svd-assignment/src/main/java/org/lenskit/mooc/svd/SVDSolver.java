@@ -0,0 +1,19 @@
+package org.lenskit.mooc.svd;
+
+import org.grouplens.grapht.annotation.DefaultImplementation;
+
+/**
+ * Strategy for computing a (possibly truncated) singular value decomposition of the rating
+ * residual matrix.
+ */
+@DefaultImplementation(ExactSVDSolver.class)
+public interface SVDSolver {
+    /**
+     * Decompose a matrix.
+     *
+     * @param matrix The matrix to decompose.
+     * @param rank The number of singular values and vectors to compute; if 0, compute all of them.
+     * @return The decomposition, with singular values in decreasing order.
+     */
+    SVDResult decompose(SparseMatrix matrix, int rank);
+}
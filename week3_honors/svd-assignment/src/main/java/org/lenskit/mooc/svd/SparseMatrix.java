@@ -0,0 +1,297 @@
+package org.lenskit.mooc.svd;
+
+import com.google.common.base.Preconditions;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import org.apache.commons.math3.linear.MatrixUtils;
+import org.apache.commons.math3.linear.RealMatrix;
+
+import java.util.Arrays;
+
+/**
+ * Sparse matrix in compressed sparse row (CSR) layout, backed by primitive arrays.  The nonzero
+ * entries of row {@code r} are stored at positions {@code getRowStart(r)} (inclusive) through
+ * {@code getRowEnd(r)} (exclusive), ordered by column.
+ */
+public final class SparseMatrix {
+    private final int rowCount;
+    private final int columnCount;
+    private final int[] rowOffsets;
+    private final int[] columnIndices;
+    private final double[] values;
+
+    private SparseMatrix(int nrows, int ncols, int[] offsets, int[] cols, double[] vals) {
+        rowCount = nrows;
+        columnCount = ncols;
+        rowOffsets = offsets;
+        columnIndices = cols;
+        values = vals;
+    }
+
+    /**
+     * Create a builder for a sparse matrix.
+     * @param nrows The number of rows.
+     * @param ncols The number of columns.
+     * @return A new builder.
+     */
+    public static Builder newBuilder(int nrows, int ncols) {
+        return new Builder(nrows, ncols);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Get the number of stored (nonzero) entries.
+     * @return The number of stored entries.
+     */
+    public int getEntryCount() {
+        return values.length;
+    }
+
+    /**
+     * Get the position of the first entry of a row.
+     * @param row The row number.
+     * @return The position of the row's first entry.
+     */
+    public int getRowStart(int row) {
+        return rowOffsets[row];
+    }
+
+    /**
+     * Get the position one past the last entry of a row.
+     * @param row The row number.
+     * @return The end position of the row's entries.
+     */
+    public int getRowEnd(int row) {
+        return rowOffsets[row + 1];
+    }
+
+    /**
+     * Get the column of the entry at a position.
+     * @param pos The entry position.
+     * @return The column number.
+     */
+    public int getColumnIndex(int pos) {
+        return columnIndices[pos];
+    }
+
+    /**
+     * Get the value of the entry at a position.
+     * @param pos The entry position.
+     * @return The entry value.
+     */
+    public double getValue(int pos) {
+        return values[pos];
+    }
+
+    /**
+     * Multiply this matrix by a block of dense column vectors, computing {@code out[c] = A in[c]}.
+     *
+     * @param in The input vectors, each of length {@link #getColumnCount()}.
+     * @param out The output vectors, each of length {@link #getRowCount()}; overwritten.
+     */
+    public void multiply(double[][] in, double[][] out) {
+        Preconditions.checkArgument(in.length == out.length, "block sizes differ");
+        final int nvecs = in.length;
+        for (int r = 0; r < rowCount; r++) {
+            for (int c = 0; c < nvecs; c++) {
+                out[c][r] = 0;
+            }
+            for (int p = rowOffsets[r], end = rowOffsets[r + 1]; p < end; p++) {
+                int col = columnIndices[p];
+                double v = values[p];
+                for (int c = 0; c < nvecs; c++) {
+                    out[c][r] += v * in[c][col];
+                }
+            }
+        }
+    }
+
+    /**
+     * Multiply the transpose of this matrix by a block of dense column vectors, computing
+     * {@code out[c] = A<sup>T</sup> in[c]}.
+     *
+     * @param in The input vectors, each of length {@link #getRowCount()}.
+     * @param out The output vectors, each of length {@link #getColumnCount()}; overwritten.
+     */
+    public void transposeMultiply(double[][] in, double[][] out) {
+        Preconditions.checkArgument(in.length == out.length, "block sizes differ");
+        final int nvecs = in.length;
+        for (int c = 0; c < nvecs; c++) {
+            Arrays.fill(out[c], 0);
+        }
+        for (int r = 0; r < rowCount; r++) {
+            for (int p = rowOffsets[r], end = rowOffsets[r + 1]; p < end; p++) {
+                int col = columnIndices[p];
+                double v = values[p];
+                for (int c = 0; c < nvecs; c++) {
+                    out[c][col] += v * in[c][r];
+                }
+            }
+        }
+    }
+
+    /**
+     * Compute the transpose of this matrix (equivalently, its CSC layout).
+     * @return The transposed matrix.
+     */
+    public SparseMatrix transpose() {
+        int[] offsets = new int[columnCount + 1];
+        for (int col : columnIndices) {
+            offsets[col + 1] += 1;
+        }
+        for (int c = 0; c < columnCount; c++) {
+            offsets[c + 1] += offsets[c];
+        }
+        int[] next = Arrays.copyOf(offsets, columnCount);
+        int[] rows = new int[values.length];
+        double[] vals = new double[values.length];
+        for (int r = 0; r < rowCount; r++) {
+            for (int p = rowOffsets[r], end = rowOffsets[r + 1]; p < end; p++) {
+                int dst = next[columnIndices[p]]++;
+                rows[dst] = r;
+                vals[dst] = values[p];
+            }
+        }
+        return new SparseMatrix(columnCount, rowCount, offsets, rows, vals);
+    }
+
+    /**
+     * Remove repeated columns within rows, keeping the last entry of each run.  Rows must be
+     * sorted by column.
+     * @return A matrix without duplicate entries (this matrix, if it has none).
+     */
+    private SparseMatrix withoutDuplicates() {
+        int ndups = 0;
+        for (int r = 0; r < rowCount; r++) {
+            for (int p = rowOffsets[r] + 1, end = rowOffsets[r + 1]; p < end; p++) {
+                if (columnIndices[p] == columnIndices[p - 1]) {
+                    ndups += 1;
+                }
+            }
+        }
+        if (ndups == 0) {
+            return this;
+        }
+
+        int[] offsets = new int[rowCount + 1];
+        int[] cols = new int[values.length - ndups];
+        double[] vals = new double[values.length - ndups];
+        int n = 0;
+        for (int r = 0; r < rowCount; r++) {
+            for (int p = rowOffsets[r], end = rowOffsets[r + 1]; p < end; p++) {
+                if (p + 1 < end && columnIndices[p + 1] == columnIndices[p]) {
+                    continue;
+                }
+                cols[n] = columnIndices[p];
+                vals[n] = values[p];
+                n += 1;
+            }
+            offsets[r + 1] = n;
+        }
+        return new SparseMatrix(rowCount, columnCount, offsets, cols, vals);
+    }
+
+    /**
+     * Copy this matrix into a dense commons-math matrix.
+     * @return The dense matrix.
+     */
+    public RealMatrix toRealMatrix() {
+        RealMatrix matrix = MatrixUtils.createRealMatrix(rowCount, columnCount);
+        for (int r = 0; r < rowCount; r++) {
+            for (int p = rowOffsets[r], end = rowOffsets[r + 1]; p < end; p++) {
+                matrix.setEntry(r, columnIndices[p], values[p]);
+            }
+        }
+        return matrix;
+    }
+
+    /**
+     * Builder for sparse matrices.  Entries may be added in any order.  If a (row, column) pair
+     * is added more than once, the value added last is kept.
+     */
+    public static class Builder {
+        private final int rowCount;
+        private final int columnCount;
+        private final IntArrayList rows = new IntArrayList();
+        private final IntArrayList columns = new IntArrayList();
+        private final DoubleArrayList values = new DoubleArrayList();
+
+        private Builder(int nrows, int ncols) {
+            rowCount = nrows;
+            columnCount = ncols;
+        }
+
+        /**
+         * Add an entry to the matrix.
+         * @param row The row number.
+         * @param col The column number.
+         * @param value The value.
+         * @return The builder (for chaining).
+         */
+        public Builder add(int row, int col, double value) {
+            Preconditions.checkElementIndex(row, rowCount, "row");
+            Preconditions.checkElementIndex(col, columnCount, "column");
+            rows.add(row);
+            columns.add(col);
+            values.add(value);
+            return this;
+        }
+
+        /**
+         * Add all entries from another builder of the same dimensions.
+         * @param other The builder whose entries should be added.
+         * @return The builder (for chaining).
+         */
+        public Builder addAll(Builder other) {
+            Preconditions.checkArgument(other.rowCount == rowCount && other.columnCount == columnCount,
+                                        "builder dimensions do not match");
+            rows.addAll(other.rows);
+            columns.addAll(other.columns);
+            values.addAll(other.values);
+            return this;
+        }
+
+        /**
+         * Get the number of entries added so far.
+         * @return The number of entries.
+         */
+        public int size() {
+            return values.size();
+        }
+
+        /**
+         * Build the CSR matrix.  Entries within each row are sorted by column, and duplicate
+         * entries are removed, keeping the one added last.
+         * @return The sparse matrix.
+         */
+        public SparseMatrix build() {
+            final int n = values.size();
+            int[] offsets = new int[rowCount + 1];
+            for (int i = 0; i < n; i++) {
+                offsets[rows.getInt(i) + 1] += 1;
+            }
+            for (int r = 0; r < rowCount; r++) {
+                offsets[r + 1] += offsets[r];
+            }
+            int[] next = Arrays.copyOf(offsets, rowCount);
+            int[] cols = new int[n];
+            double[] vals = new double[n];
+            for (int i = 0; i < n; i++) {
+                int dst = next[rows.getInt(i)]++;
+                cols[dst] = columns.getInt(i);
+                vals[dst] = values.getDouble(i);
+            }
+            // sorting rows by column is two transposes of a counting sort, which are stable, so
+            // duplicates end up next to each other in the order they were added
+            SparseMatrix sorted = new SparseMatrix(rowCount, columnCount, offsets, cols, vals).transpose().transpose();
+            return sorted.withoutDuplicates();
+        }
+    }
+}
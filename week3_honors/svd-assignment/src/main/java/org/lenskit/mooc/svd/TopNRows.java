@@ -0,0 +1,149 @@
+package org.lenskit.mooc.svd;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounded accumulator that keeps the {@code n} highest-scoring matrix rows seen so far.  It is
+ * a binary min-heap over parallel primitive arrays, so offering a row does not allocate.
+ *
+ * <p>Once all rows have been offered, call {@link #sort()} to order the retained rows by
+ * decreasing score; after sorting, {@link #getRow(int)} and {@link #getScore(int)} return them
+ * in rank order.
+ */
+public final class TopNRows {
+    private final int capacity;
+    private final int[] rows;
+    private final double[] scores;
+    private int size;
+
+    /**
+     * Create a new accumulator.
+     * @param n The number of rows to retain.
+     */
+    public TopNRows(int n) {
+        Preconditions.checkArgument(n >= 0, "negative list size");
+        capacity = n;
+        rows = new int[n];
+        scores = new double[n];
+    }
+
+    /**
+     * Get the number of rows retained.
+     * @return The number of rows currently in the accumulator.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Query whether the accumulator is full.
+     * @return {@code true} if the accumulator holds {@code n} rows.
+     */
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Get the lowest retained score.  A row must score strictly higher than this to be retained
+     * once the accumulator is full.
+     *
+     * @return The lowest retained score, or negative infinity if the accumulator is not full.
+     */
+    public double threshold() {
+        return size < capacity ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offer a row to the accumulator.
+     * @param row The row number.
+     * @param score The row's score.
+     */
+    public void offer(int row, double score) {
+        if (size < capacity) {
+            int i = size++;
+            rows[i] = row;
+            scores[i] = score;
+            siftUp(i);
+        } else if (capacity > 0 && score > scores[0]) {
+            rows[0] = row;
+            scores[0] = score;
+            siftDown(0, size);
+        }
+    }
+
+    /**
+     * Remove all rows from the accumulator.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Sort the retained rows by decreasing score.  The accumulator must not be offered further
+     * rows until it is cleared.
+     */
+    public void sort() {
+        // heapsort on a min-heap leaves the array in decreasing order
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+    }
+
+    /**
+     * Get a retained row.
+     * @param i The rank (after {@link #sort()}).
+     * @return The row number.
+     */
+    public int getRow(int i) {
+        Preconditions.checkElementIndex(i, size);
+        return rows[i];
+    }
+
+    /**
+     * Get a retained row's score.
+     * @param i The rank (after {@link #sort()}).
+     * @return The score.
+     */
+    public double getScore(int i) {
+        Preconditions.checkElementIndex(i, size);
+        return scores[i];
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (scores[i] >= scores[parent]) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= end) {
+                break;
+            }
+            if (child + 1 < end && scores[child + 1] < scores[child]) {
+                child += 1;
+            }
+            if (scores[i] <= scores[child]) {
+                break;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int r = rows[i];
+        rows[i] = rows[j];
+        rows[j] = r;
+        double s = scores[i];
+        scores[i] = scores[j];
+        scores[j] = s;
+    }
+}
@@ -24,6 +24,7 @@ import org.lenskit.transform.normalize.UserVectorNormalizer
 bind ItemScorer to LinearBlendItemScorer
 bind (BaselineScorer, ItemScorer) to BiasItemScorer
 bind BiasModel to UserItemBiasModel
+// set ParallelBlend to true to score the two sides of each blend concurrently
 
 for (blend in [0, 0.1, 0.2, 0.3, 0.4, 0.5, 0.6, 0.7, 0.8, 0.9, 1.0]) {
     algorithm("ii-svd-blend") {
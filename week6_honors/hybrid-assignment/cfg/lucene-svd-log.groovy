@@ -13,7 +13,9 @@ import org.lenskit.mf.funksvd.FeatureCount
 import org.lenskit.mf.funksvd.FunkSVDItemScorer
 import org.lenskit.mooc.cbf.LuceneItemItemModel
 import org.lenskit.mooc.hybrid.LogisticItemScorer
+import org.lenskit.mooc.hybrid.LogisticSolver
 import org.lenskit.mooc.hybrid.LogisticTrainingSplit
+import org.lenskit.mooc.hybrid.NewtonLogisticSolver
 import org.lenskit.mooc.hybrid.RecommenderConfigurationList
 import org.lenskit.transform.normalize.BiasUserVectorNormalizer
 import org.lenskit.transform.normalize.UserVectorNormalizer
@@ -45,6 +47,7 @@ addComponent RecommenderConfigurationList.create(svd, lucene)
 
 bind ItemScorer to LogisticItemScorer
 set LogisticTrainingSplit.TrainingBalance to 2.0
+// bind LogisticSolver to NewtonLogisticSolver to fit the blend with Newton's method instead of SGD
 
 bind (BaselineScorer, ItemScorer) to BiasItemScorer
 bind BiasModel to UserItemBiasModel
\ No newline at end of file
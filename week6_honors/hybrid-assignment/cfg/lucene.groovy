@@ -24,6 +24,9 @@ import org.lenskit.transform.normalize.UserVectorNormalizer
 bind ItemScorer to ItemItemScorer
 set NeighborhoodSize to 20
 bind ItemItemModel to LuceneItemItemModel
+// or bind ItemItemModel to TFIDFItemItemModel (see tfidf.groovy) for the index-free TF-IDF model
+// or bind ItemItemModel to PrecomputedLuceneModel (with a ModelSize) to compute all neighbors at build time
+// set LuceneModelBuilder.IndexDirectory to "build/lucene-index" to keep the index on disk and reuse it
 bind UserVectorNormalizer to BiasUserVectorNormalizer
 within (UserVectorNormalizer) {
     bind BiasModel to ItemBiasModel
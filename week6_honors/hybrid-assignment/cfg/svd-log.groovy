@@ -8,7 +8,9 @@ import org.lenskit.bias.UserItemBiasModel
 import org.lenskit.mf.funksvd.FeatureCount
 import org.lenskit.mf.funksvd.FunkSVDItemScorer
 import org.lenskit.mooc.hybrid.LogisticItemScorer
+import org.lenskit.mooc.hybrid.LogisticSolver
 import org.lenskit.mooc.hybrid.LogisticTrainingSplit
+import org.lenskit.mooc.hybrid.NewtonLogisticSolver
 import org.lenskit.mooc.hybrid.RecommenderConfigurationList
 
 def svd = {
@@ -25,6 +27,7 @@ addComponent RecommenderConfigurationList.create(svd)
 
 bind ItemScorer to LogisticItemScorer
 set LogisticTrainingSplit.TrainingBalance to 2.0
+// bind LogisticSolver to NewtonLogisticSolver to fit the blend with Newton's method instead of SGD
 
 bind (BaselineScorer, ItemScorer) to BiasItemScorer
 bind BiasModel to UserItemBiasModel
\ No newline at end of file
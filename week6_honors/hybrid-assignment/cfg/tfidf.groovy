@@ -0,0 +1,26 @@
+import org.lenskit.api.ItemScorer
+import org.lenskit.baseline.BaselineScorer
+import org.lenskit.bias.BiasItemScorer
+import org.lenskit.bias.BiasModel
+import org.lenskit.bias.ItemBiasModel
+import org.lenskit.bias.UserItemBiasModel
+import org.lenskit.knn.NeighborhoodSize
+import org.lenskit.knn.item.ItemItemScorer
+import org.lenskit.knn.item.ModelSize
+import org.lenskit.knn.item.model.ItemItemModel
+import org.lenskit.mooc.cbf.TFIDFItemItemModel
+import org.lenskit.transform.normalize.BiasUserVectorNormalizer
+import org.lenskit.transform.normalize.UserVectorNormalizer
+
+bind ItemScorer to ItemItemScorer
+set NeighborhoodSize to 20
+bind ItemItemModel to TFIDFItemItemModel
+set ModelSize to 500
+// set TFIDFModelBuilder.HashBands to 16 to only compare movies that share a MinHash bucket
+bind UserVectorNormalizer to BiasUserVectorNormalizer
+within (UserVectorNormalizer) {
+    bind BiasModel to ItemBiasModel
+}
+
+bind (BaselineScorer, ItemScorer) to BiasItemScorer
+bind BiasModel to UserItemBiasModel
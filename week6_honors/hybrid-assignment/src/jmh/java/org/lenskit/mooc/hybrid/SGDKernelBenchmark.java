@@ -0,0 +1,90 @@
+package org.lenskit.mooc.hybrid;
+
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.RealVector;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares one epoch of the logistic blend's SGD kernel ({@link SGDLogisticSolver#trainEpoch})
+ * against the previous training loop, which built a {@link RealVector} for every rating and a new
+ * {@link LogisticModel} after every update.  Both visit the rows in the same fixed order.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SGDKernelBenchmark {
+    @Param({"100000"})
+    public int rowCount;
+    @Param({"5"})
+    public int featureCount;
+
+    private static final double LEARNING_RATE = 0.00005;
+
+    private double[] x;
+    private double[] y;
+    private int[] order;
+    private double[] weights;
+    private double[] gradient;
+
+    @Setup
+    public void setup() {
+        Random rng = new Random(42);
+        x = new double[rowCount * featureCount];
+        y = new double[rowCount];
+        for (int i = 0; i < x.length; i++) {
+            x[i] = 1 + 4 * rng.nextDouble();
+        }
+        for (int r = 0; r < rowCount; r++) {
+            y[r] = rng.nextBoolean() ? 1 : -1;
+        }
+        order = new int[rowCount];
+        for (int r = 0; r < rowCount; r++) {
+            order[r] = r;
+        }
+        SGDLogisticSolver.shuffle(order, rng);
+        weights = new double[featureCount + 1];
+        gradient = new double[featureCount + 1];
+    }
+
+    /**
+     * One epoch of the previous loop, allocating a feature vector and a model per rating.
+     */
+    @Benchmark
+    public LogisticModel epochRealVector() {
+        double intercept = 0;
+        double[] params = new double[featureCount];
+        LogisticModel current = LogisticModel.create(intercept, params);
+        for (int r : order) {
+            double yr = y[r];
+            RealVector vars = new ArrayRealVector(featureCount);
+            for (int j = 0; j < featureCount; j++) {
+                vars.setEntry(j, x[r * featureCount + j]);
+            }
+            double activation = current.evaluate(-yr, vars);
+            intercept += LEARNING_RATE * yr * activation;
+            for (int j = 0; j < featureCount; j++) {
+                params[j] += LEARNING_RATE * yr * vars.getEntry(j) * activation;
+            }
+            current = LogisticModel.create(intercept, params);
+        }
+        return current;
+    }
+
+    /**
+     * One epoch of the allocation-free kernel, with a batch size of 1.
+     */
+    @Benchmark
+    public double[] epochKernel() {
+        Arrays.fill(weights, 0);
+        SGDLogisticSolver.trainEpoch(x, y, featureCount, order, 0, order.length, 1,
+                                     LEARNING_RATE, weights, gradient);
+        return weights;
+    }
+}
@@ -1,124 +1,434 @@
 package org.lenskit.mooc.cbf;
 
-import com.google.common.base.Throwables;
+import com.google.common.base.Stopwatch;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.CacheLoader;
-import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheStats;
 import com.google.common.io.Closer;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
 import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
 import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.longs.LongSortedSet;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.index.Term;
 import org.apache.lucene.search.*;
 import org.apache.lucene.search.similar.MoreLikeThis;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
 import org.grouplens.grapht.annotation.DefaultProvider;
-import org.lenskit.knn.item.ModelSize;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonTypes;
 import org.lenskit.knn.item.model.ItemItemModel;
 import org.lenskit.util.collections.LongUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * The Lucene-backed CBF model.
+ *
+ * <p>The index may be in memory or in a memory-mapped directory on disk (see
+ * {@link LuceneModelBuilder.IndexDirectory}).  An on-disk model only stores the path of its
+ * index, and opens the directory when it is first used.  The model opens one reader and searcher
+ * on the index and shares them between all lookups (Lucene searchers are thread-safe).  Movie IDs are
+ * resolved through arrays built when the model is opened, so a lookup only runs the similarity
+ * query itself.  Neighbors are computed on demand and cached; to compute them all at build time
+ * instead, use {@link PrecomputedLuceneModel}.  The model holds an open index and a mutable cache,
+ * so it is not shareable: each recommender gets its own.  The cache is bounded by the total number
+ * of neighbors it holds (see {@link LuceneModelBuilder.NeighborCacheSize}) and records statistics, which are
+ * logged every {@value #STATS_INTERVAL} lookups (LensKit does not close models, so they cannot
+ * wait for shutdown).  Closing the model is optional: a memory-mapped index holds no open files
+ * once the reader has mapped it, and both kinds of index are released when the model is
+ * garbage-collected.
+ *
+ * <p>New or changed movies can be written to the index with
+ * {@link #updateMovies(DataAccessObject, LongSet)}, which reopens the reader and drops only the
+ * cached neighborhoods the change affects.  An in-memory index is updated in place; an on-disk
+ * index is copied to the directory of its new fingerprint, since other models may share the old
+ * one.
+ *
  * @author Michael Ekstrand
  */
 @DefaultProvider(LuceneModelBuilder.class)
-public class LuceneItemItemModel implements ItemItemModel {
+public class LuceneItemItemModel implements ItemItemModel, Closeable {
     private static Logger logger = LoggerFactory.getLogger(LuceneItemItemModel.class);
 
-    private final Directory luceneDir;
-    private final LongSortedSet itemSet;
-    private final LoadingCache<Long,Long2DoubleMap> cache;
+    private static final String[] SIMILARITY_FIELDS = {"title", "genres", "tags"};
+    private static final long STATS_INTERVAL = 100000;
 
-    LuceneItemItemModel(Directory dir, LongSortedSet items) {
-        luceneDir = dir;
-        itemSet = items;
+    @Nullable
+    private final Directory memoryDir;
+    @Nullable
+    private volatile File indexPath;
+    private final int neighborCount;
+    private final ReadWriteLock indexLock;
+    private volatile LongSortedSet items;
+    private volatile IndexState index;
+    private final Cache<Long,Long2DoubleMap> cache;
+    private final LongAdder loadCount;
+    private final LongAdder loadFailures;
+    private final LongAdder loadTime;
+    private final AtomicLong lookupCount;
+    private final AtomicBoolean closed;
+
+    /**
+     * Open a model on an in-memory index.
+     *
+     * @param dir The index directory.
+     * @param items The item universe.
+     * @param nnbrs The number of neighbors to retain per item, or 0 to retain all of them.
+     * @param cacheSize The maximum number of neighbors (over all items) to cache.
+     * @throws IOException if there is an error opening the index.
+     */
+    LuceneItemItemModel(Directory dir, LongSortedSet items, int nnbrs, long cacheSize) throws IOException {
+        this(dir, null, items, nnbrs, cacheSize);
+        index = new IndexState(dir, false, nnbrs);
+    }
+
+    /**
+     * Create a model on an on-disk index.  The index is opened when the model is first used.
+     *
+     * @param path The index directory.
+     * @param items The item universe.
+     * @param nnbrs The number of neighbors to retain per item, or 0 to retain all of them.
+     * @param cacheSize The maximum number of neighbors (over all items) to cache.
+     */
+    LuceneItemItemModel(File path, LongSortedSet items, int nnbrs, long cacheSize) {
+        this(null, path, items, nnbrs, cacheSize);
+    }
+
+    private LuceneItemItemModel(@Nullable Directory dir, @Nullable File path,
+                                LongSortedSet items, int nnbrs, long cacheSize) {
+        memoryDir = dir;
+        indexPath = path;
+        this.items = items;
+        neighborCount = nnbrs;
+        indexLock = new ReentrantReadWriteLock();
+        // weigh entries by neighbor count, plus one so that empty neighborhoods are not free
         cache = CacheBuilder.newBuilder()
-                            .build(new LuceneCacheLoader());
+                            .maximumWeight(cacheSize)
+                            .weigher((Long key, Long2DoubleMap nbrs) -> 1 + nbrs.size())
+                            .recordStats()
+                            .build();
+        loadCount = new LongAdder();
+        loadFailures = new LongAdder();
+        loadTime = new LongAdder();
+        lookupCount = new AtomicLong();
+        closed = new AtomicBoolean();
     }
 
     @Override
     public LongSortedSet getItemUniverse() {
-        return itemSet;
+        return items;
+    }
+
+    /**
+     * Get the open index, opening an on-disk index on first use.
+     */
+    private IndexState getIndex() throws IOException {
+        IndexState idx = index;
+        if (idx == null) {
+            synchronized (this) {
+                idx = index;
+                if (idx == null) {
+                    if (closed.get()) {
+                        throw new IllegalStateException("model is closed");
+                    }
+                    logger.info("opening Lucene movie index in {}", indexPath);
+                    idx = new IndexState(new MMapDirectory(indexPath), true, neighborCount);
+                    index = idx;
+                }
+            }
+        }
+        return idx;
     }
 
     @Nonnull
     @Override
     public Long2DoubleMap getNeighbors(long item) {
+        if (lookupCount.incrementAndGet() % STATS_INTERVAL == 0) {
+            logCacheStats();
+        }
+        Long2DoubleMap nbrs = cache.getIfPresent(item);
+        return nbrs != null ? nbrs : loadNeighbors(item);
+    }
+
+    /**
+     * Compute and cache the neighbors of an item.  The result is cached while the read lock is
+     * still held, so it cannot land in the cache after an update has swapped the index and
+     * invalidated the entries it affects (both under the write lock).
+     */
+    private Long2DoubleMap loadNeighbors(long item) {
+        indexLock.readLock().lock();
         try {
-            return cache.get(item);
-        } catch (ExecutionException e) {
-            logger.error("error fetching neighborhood", e.getCause());
-            throw Throwables.propagate(e.getCause());
+            // another thread may have loaded the neighbors while this one waited (no stats)
+            Long2DoubleMap nbrs = cache.asMap().get(item);
+            if (nbrs == null) {
+                long start = System.nanoTime();
+                try {
+                    nbrs = getNeighborsImpl(item);
+                } catch (RuntimeException | Error e) {
+                    // failed loads count towards the load time, as in a loading cache
+                    loadTime.add(System.nanoTime() - start);
+                    loadFailures.increment();
+                    throw e;
+                }
+                loadTime.add(System.nanoTime() - start);
+                loadCount.increment();
+                cache.put(item, nbrs);
+            }
+            return nbrs;
+        } finally {
+            indexLock.readLock().unlock();
         }
     }
 
     public Long2DoubleMap getNeighborsImpl(long item) {
+        // updates swap and close the reader under the write lock
+        indexLock.readLock().lock();
         try {
-            Closer closer = Closer.create();
-            try {
-                IndexReader reader = closer.register(IndexReader.open(luceneDir));
-                IndexSearcher idx = closer.register(new IndexSearcher(reader));;
-
-                Term term = new Term("movie", Long.toString(item));
-                Query tq = new TermQuery(term);
-                TopDocs docs = idx.search(tq, 1);
-                if (docs.totalHits > 1) {
-                    logger.warn("found multiple matches for {}", item);
-                } else if (docs.totalHits == 0) {
-                    logger.debug("could not find movie {}", item);
-                    return Long2DoubleMaps.EMPTY_MAP;
+            IndexState idx = getIndex();
+            int docid = idx.movieDocs.get(item);
+            if (docid < 0) {
+                logger.debug("could not find movie {}", item);
+                return Long2DoubleMaps.EMPTY_MAP;
+            }
+            logger.trace("finding neighbors for movie {} (document {})", item, docid);
+
+            MoreLikeThis mlt = new MoreLikeThis(idx.reader);
+            mlt.setFieldNames(SIMILARITY_FIELDS);
+            Query q = mlt.like(docid);
+            TopDocs results = idx.searcher.search(q, idx.resultCount);
+
+            logger.trace("index returned {} of {} similar movies",
+                         results.scoreDocs.length, results.totalHits);
+            Long2DoubleMap scores = new Long2DoubleOpenHashMap(results.scoreDocs.length);
+            for (ScoreDoc sd: results.scoreDocs) {
+                long id = idx.docMovies[sd.doc];
+                if (id != item) {
+                    scores.put(id, sd.score);
                 }
+            }
+            logger.trace("returning {} neighbors", scores.size());
+            return LongUtils.frozenMap(scores);
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error fetching neighbors", e);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
 
-                int docid = docs.scoreDocs[0].doc;
-                Document doc = idx.doc(docid);
-                Long mid = Long.parseLong(doc.get("movie"));
-                if (mid != item) {
-                    logger.error("retrieved document doesn't match ({} != {})", mid, item);
-                    return Long2DoubleMaps.EMPTY_MAP;
+    /**
+     * Add, replace or delete the documents of some movies, and invalidate the cached neighborhoods
+     * the change affects: those of the changed movies, those that list a changed movie, and those
+     * of the changed movies' new neighbors (the similarity is close to symmetric, so these are the
+     * neighborhoods a changed movie is likely to enter).  The rest of the cache is kept, so the
+     * index work of an update is proportional to the number of changed movies.  Finding the
+     * neighborhoods that list a changed movie scans the cache in memory, which costs a few
+     * microseconds per thousand cached neighborhoods; no reverse neighbor index is kept, since it
+     * would double the cache's memory.  Other neighborhoods' scores drift slightly as the index's
+     * term statistics change; they are refreshed as they are evicted.
+     *
+     * <p>The index is swapped and the cache invalidated under the write lock, so cache misses wait
+     * for the update (cache hits do not), and no neighbors computed from the old index can be
+     * cached afterwards.
+     *
+     * @param dao The DAO holding the current movies and tags.
+     * @param movies The new or changed movies.  Those no longer in the DAO are removed.
+     * @throws IOException if there is an error writing or reopening the index.
+     */
+    public void updateMovies(DataAccessObject dao, LongSet movies) throws IOException {
+        if (movies.isEmpty()) {
+            return;
+        }
+        Stopwatch timer = Stopwatch.createStarted();
+        indexLock.writeLock().lock();
+        try {
+            IndexState old = getIndex();
+            // the stored fingerprint sums the movies' hashes, so subtract those of the old documents
+            long oldHash = 0;
+            LongIterator iter = movies.iterator();
+            while (iter.hasNext()) {
+                long movie = iter.nextLong();
+                int doc = old.movieDocs.get(movie);
+                if (doc >= 0) {
+                    Document stored = old.reader.document(doc);
+                    oldHash += LuceneModelBuilder.movieHash(movie, stored.get("title"), stored.get("tags"));
+                }
+            }
+            if (memoryDir != null) {
+                LuceneModelBuilder.updateMovies(memoryDir, dao, movies, oldHash);
+                IndexReader reader = IndexReader.openIfChanged(old.reader);
+                if (reader != null) {
+                    index = new IndexState(memoryDir, false, reader, neighborCount);
+                    old.close();
+                }
+            } else {
+                File updated = LuceneModelBuilder.updateMoviesCopy(indexPath, old.directory, dao, movies, oldHash);
+                index = new IndexState(new MMapDirectory(updated), true, neighborCount);
+                indexPath = updated;
+                old.close();
+            }
+            LongSet newItems = new LongOpenHashSet(items);
+            iter = movies.iterator();
+            while (iter.hasNext()) {
+                long movie = iter.nextLong();
+                if (dao.lookupEntity(CommonTypes.ITEM, movie) != null) {
+                    newItems.add(movie);
+                } else {
+                    newItems.remove(movie);
                 }
-                logger.trace("movie {} has index {}", item, docid);
-                logger.trace("finding neighbors for movie {} ({})", item, doc.get("title"));
-
-                MoreLikeThis mlt = new MoreLikeThis(idx.getIndexReader());
-                mlt.setFieldNames(new String[]{"title", "genres", "tags"});
-                Query q = mlt.like(docid);
-                TopDocs results = idx.search(q, itemSet.size() + 1);
-
-                logger.trace("index returned {} of {} similar movies",
-                             results.scoreDocs.length, results.totalHits);
-                Long2DoubleMap scores = new Long2DoubleOpenHashMap(results.totalHits);
-                for (ScoreDoc sd: results.scoreDocs) {
-                    Document nbrdoc = idx.doc(sd.doc);
-                    long id = Long.parseLong(nbrdoc.get("movie"));
-                    if (id != item) {
-                        scores.put(id, sd.score);
+            }
+            items = LongUtils.packedSet(newItems);
+
+            LongSet stale = new LongOpenHashSet(movies);
+            for (Map.Entry<Long,Long2DoubleMap> e: cache.asMap().entrySet()) {
+                Long2DoubleMap nbrs = e.getValue();
+                iter = movies.iterator();
+                while (iter.hasNext()) {
+                    if (nbrs.containsKey(iter.nextLong())) {
+                        stale.add(e.getKey());
+                        break;
                     }
                 }
-                logger.trace("returning {} neighbors", scores.size());
-                return LongUtils.frozenMap(scores);
-            } catch (Throwable th) {
-                throw closer.rethrow(th);
-            } finally {
-                closer.close();
             }
-        } catch (IOException e) {
-            throw new RuntimeException("I/O error fetching neighbors", e);
+            iter = movies.iterator();
+            while (iter.hasNext()) {
+                stale.addAll(getNeighborsImpl(iter.nextLong()).keySet());
+            }
+            cache.invalidateAll(stale);
+            logger.info("updated {} movies in {}, invalidating {} cached neighborhoods",
+                        movies.size(), timer, stale.size());
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the statistics of the neighbor cache.
+     * @return The cache's hit, miss, load, failed load and eviction counts.
+     */
+    public CacheStats getCacheStats() {
+        // loads happen outside the cache (see loadNeighbors), so their counts are kept here
+        CacheStats stats = cache.stats();
+        return new CacheStats(stats.hitCount(), stats.missCount(), loadCount.sum(), loadFailures.sum(),
+                              loadTime.sum(), stats.evictionCount());
+    }
+
+    private void logCacheStats() {
+        CacheStats stats = getCacheStats();
+        logger.info("neighbor cache: {} requests, {} hits ({}), {} loads averaging {} ms ({} failed), {} evictions",
+                    stats.requestCount(), stats.hitCount(), String.format("%.1f%%", stats.hitRate() * 100),
+                    stats.loadCount(), String.format("%.2f", stats.averageLoadPenalty() / 1.0e6),
+                    stats.loadExceptionCount(), stats.evictionCount());
+    }
+
+    /**
+     * Log the cache statistics and close the index and its directory.  Closing a model more than
+     * once does nothing.  The files of an on-disk index are kept.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        logCacheStats();
+        closeIndex();
+    }
+
+    private synchronized void closeIndex() throws IOException {
+        // closed in reverse order of registration
+        Closer closer = Closer.create();
+        if (memoryDir != null) {
+            closer.register(memoryDir);
         }
+        if (index != null) {
+            closer.register(index);
+        }
+        closer.close();
     }
 
-    private class LuceneCacheLoader extends CacheLoader<Long,Long2DoubleMap> {
+    /**
+     * An open reader on the index, with the mappings between movie IDs and documents.  It is
+     * replaced as a whole when the index is updated.
+     */
+    private static class IndexState implements Closeable {
+        final Directory directory;
+        final boolean ownsDirectory;
+        final IndexReader reader;
+        final IndexSearcher searcher;
+        final long[] docMovies;
+        final Long2IntMap movieDocs;
+        final int resultCount;
+
+        /**
+         * Open a reader on a directory.
+         * @param dir The directory.
+         * @param owns Whether closing the state closes the directory.
+         * @param nnbrs The number of neighbors to retain per item.
+         */
+        IndexState(Directory dir, boolean owns, int nnbrs) throws IOException {
+            this(dir, owns, IndexReader.open(dir), nnbrs);
+        }
+
+        IndexState(Directory dir, boolean owns, IndexReader reader, int nnbrs) throws IOException {
+            directory = dir;
+            ownsDirectory = owns;
+            this.reader = reader;
+            searcher = new IndexSearcher(reader);
+
+            // the movie field holds a single term, so the field cache gives each document's ID;
+            // documents replaced by an update stay in the cache until their segment is merged
+            String[] ids = FieldCache.DEFAULT.getStrings(reader, "movie");
+            boolean deletions = reader.hasDeletions();
+            docMovies = new long[ids.length];
+            movieDocs = new Long2IntOpenHashMap(ids.length);
+            movieDocs.defaultReturnValue(-1);
+            for (int doc = 0; doc < ids.length; doc++) {
+                if (ids[doc] == null || (deletions && reader.isDeleted(doc))) {
+                    continue;
+                }
+                long id = Long.parseLong(ids[doc]);
+                docMovies[doc] = id;
+                if (movieDocs.containsKey(id)) {
+                    logger.warn("found multiple matches for {}", id);
+                } else {
+                    movieDocs.put(id, doc);
+                }
+            }
+            logger.info("opened index of {} movies", movieDocs.size());
+
+            // one extra result, since a movie is most similar to itself
+            int maxResults = Math.max(1, reader.maxDoc());
+            resultCount = nnbrs > 0 ? Math.min(nnbrs + 1, maxResults) : maxResults;
+        }
+
         @Override
-        public Long2DoubleMap load(Long key) throws Exception {
-            return getNeighborsImpl(key);
+        public void close() throws IOException {
+            // closed in reverse order of registration
+            Closer closer = Closer.create();
+            if (ownsDirectory) {
+                closer.register(directory);
+            }
+            closer.register(reader);
+            closer.register(searcher);
+            closer.close();
         }
     }
 }
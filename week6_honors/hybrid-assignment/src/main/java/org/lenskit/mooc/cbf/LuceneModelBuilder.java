@@ -1,89 +1,520 @@
 package org.lenskit.mooc.cbf;
 
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.en.EnglishAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
 import org.apache.lucene.store.RAMDirectory;
 import org.apache.lucene.util.Version;
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.grapht.annotation.DefaultLong;
+import org.grouplens.grapht.annotation.DefaultString;
 import org.lenskit.data.dao.DataAccessObject;
 import org.lenskit.data.entities.CommonAttributes;
 import org.lenskit.data.entities.CommonTypes;
 import org.lenskit.data.entities.Entity;
+import org.lenskit.inject.Parameter;
 import org.lenskit.inject.Transient;
 import org.lenskit.knn.item.ModelSize;
 import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.io.ObjectStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Provider;
+import javax.inject.Qualifier;
+import java.io.File;
 import java.io.IOException;
+import java.lang.annotation.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
 
 /**
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class LuceneModelBuilder implements Provider<LuceneItemItemModel> {
     private static final Logger logger = LoggerFactory.getLogger(LuceneModelBuilder.class);
+    private static final double RAM_BUFFER_MB = 64;
+    private static final String FINGERPRINT_KEY = "fingerprint";
+    private static final long POOL_KEEP_ALIVE_SECONDS = 60;
+    /**
+     * Locks serializing the publication of on-disk indexes, keyed by canonical directory.
+     */
+    private static final ConcurrentMap<File, Object> BUILD_LOCKS = new ConcurrentHashMap<>();
     private final DataAccessObject dao;
+    private final int neighborCount;
+    private final long cacheSize;
+    private final int threadCount;
+    private final String indexPath;
 
     @Inject
-    public LuceneModelBuilder(@Transient DataAccessObject dao) {
+    public LuceneModelBuilder(@Transient DataAccessObject dao,
+                              @ModelSize int nnbrs,
+                              @NeighborCacheSize long cacheSize,
+                              @IndexThreads int nthreads,
+                              @IndexDirectory String path) {
+        Preconditions.checkArgument(cacheSize > 0, "neighbor cache size must be positive");
         this.dao = dao;
+        neighborCount = nnbrs;
+        this.cacheSize = cacheSize;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        threadCount = nthreads > 0 ? Math.min(nthreads, maxThreads) : maxThreads;
+        indexPath = path;
     }
 
     @Override
     public LuceneItemItemModel get() {
-        Directory dir = new RAMDirectory();
-
+        LongSortedSet items = LongUtils.packedSet(dao.getEntityIds(CommonTypes.ITEM));
+        Stopwatch timer = Stopwatch.createStarted();
+        Long2ObjectMap<StringBuilder> tags = collectTags();
+        long fingerprint = fingerprint(items, tags);
+        logger.info("grouped tags of {} movies in {}", tags.size(), timer);
         try {
-            writeMovies(dir);
+            if (indexPath == null || indexPath.isEmpty()) {
+                Directory dir = new RAMDirectory();
+                writeMovies(dir, tags, fingerprint);
+                return new LuceneItemItemModel(dir, items, neighborCount, cacheSize);
+            }
+
+            // each version of the movie data has its own directory, which is never written again
+            // once published, so readers opened on it by other models stay valid
+            File root = new File(indexPath).getCanonicalFile();
+            File path = indexDirectory(root, fingerprint);
+            synchronized (lockFor(path)) {
+                if (isCurrent(path, fingerprint)) {
+                    logger.info("reusing Lucene movie index in {}", path);
+                } else {
+                    logger.info("building Lucene movie index in {}", path);
+                    File temp = createTempDirectory(root);
+                    try (Directory dir = new MMapDirectory(temp)) {
+                        writeMovies(dir, tags, fingerprint);
+                    }
+                    publish(temp, path, fingerprint);
+                }
+            }
+            // the model opens the directory when it is first used
+            return new LuceneItemItemModel(path, items, neighborCount, cacheSize);
         } catch (IOException e) {
             throw new RuntimeException("I/O error writing movie model", e);
         }
-        return new LuceneItemItemModel(dir, LongUtils.packedSet(dao.getEntityIds(CommonTypes.ITEM)));
     }
 
-    private void writeMovies(Directory dir) throws IOException {
-        Analyzer analyzer = new EnglishAnalyzer(Version.LUCENE_35);
-        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_35, analyzer);
-        config.setOpenMode(IndexWriterConfig.OpenMode.CREATE);
+    /**
+     * Get the directory holding the index of one version of the movie data.
+     * @param root The index root directory (see {@link IndexDirectory}).
+     * @param fingerprint The fingerprint of the movie data.
+     * @return The index directory, {@code root/<hex fingerprint>}.
+     */
+    static File indexDirectory(File root, long fingerprint) {
+        return new File(root, Long.toHexString(fingerprint));
+    }
+
+    private static Object lockFor(File path) {
+        return BUILD_LOCKS.computeIfAbsent(path, p -> new Object());
+    }
+
+    /**
+     * Check whether a directory already holds an index of the current movies, by comparing the
+     * fingerprint stored with its last commit.
+     */
+    private static boolean isCurrent(File path, long fingerprint) throws IOException {
+        if (!path.isDirectory()) {
+            return false;
+        }
+        try (Directory dir = new MMapDirectory(path)) {
+            if (!IndexReader.indexExists(dir)) {
+                return false;
+            }
+            String stored = IndexReader.getCommitUserData(dir).get(FINGERPRINT_KEY);
+            return Long.toHexString(fingerprint).equals(stored);
+        }
+    }
+
+    private static File createTempDirectory(File root) throws IOException {
+        if (!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("cannot create index directory " + root);
+        }
+        return Files.createTempDirectory(root.toPath(), "build-").toFile();
+    }
+
+    /**
+     * Publish a finished index under its fingerprint directory, by renaming its temporary
+     * directory.  The rename is atomic, so builds in other processes see either no index or a
+     * complete one.  If another process has published the same index first, the temporary
+     * directory is deleted instead.  Must be called with the lock of the target directory held.
+     *
+     * @param temp The temporary directory holding the index.
+     * @param path The fingerprint directory to publish it as.
+     * @param fingerprint The fingerprint of the index.
+     * @throws IOException if the index cannot be published.
+     */
+    private static void publish(File temp, File path, long fingerprint) throws IOException {
+        if (path.exists() && !isCurrent(path, fingerprint)) {
+            // left over from an interrupted build; no model can have it open
+            deleteDirectory(path);
+        }
+        if (!temp.renameTo(path)) {
+            if (!isCurrent(path, fingerprint)) {
+                deleteDirectory(temp);
+                throw new IOException("cannot move index from " + temp + " to " + path);
+            }
+            deleteDirectory(temp);
+        }
+    }
+
+    private static void deleteDirectory(File path) throws IOException {
+        // index directories are flat
+        File[] files = path.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                if (!file.delete()) {
+                    throw new IOException("cannot delete " + file);
+                }
+            }
+        }
+        if (!path.delete()) {
+            throw new IOException("cannot delete " + path);
+        }
+    }
 
-        IndexWriter writer = new IndexWriter(dir, config);
+    /**
+     * Compute the fingerprint of the movie data: the sum of the {@linkplain #movieHash hashes} of
+     * the movies, so that it can be updated one movie at a time.
+     */
+    private long fingerprint(LongSortedSet items, Long2ObjectMap<StringBuilder> tags) {
+        long fingerprint = 0;
+        LongIterator iter = items.iterator();
+        while (iter.hasNext()) {
+            long movie = iter.nextLong();
+            Entity entity = dao.lookupEntity(CommonTypes.ITEM, movie);
+            fingerprint += movieHash(movie, entity.get(CommonAttributes.NAME), tags.get(movie));
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Hash the indexed content of a movie.  The hash does not depend on the order of the tags, so
+     * it can be computed both from the DAO and from a stored document.
+     *
+     * @param movieId The movie ID.
+     * @param title The movie title.
+     * @param tagDoc The movie's tags, one per line.
+     * @return The hash.
+     */
+    static long movieHash(long movieId, @Nullable String title, @Nullable CharSequence tagDoc) {
+        long tagHash = 0;
+        if (tagDoc != null) {
+            int start = 0;
+            for (int i = 0; i <= tagDoc.length(); i++) {
+                if (i == tagDoc.length() || tagDoc.charAt(i) == '\n') {
+                    if (i > start) {
+                        tagHash += mix(stringHash(tagDoc, start, i));
+                    }
+                    start = i + 1;
+                }
+            }
+        }
+        long hash = mix(movieId);
+        hash = mix(hash * 31 + (title != null ? stringHash(title, 0, title.length()) : 0));
+        return mix(hash * 31 + tagHash);
+    }
+
+    private static long stringHash(CharSequence str, int start, int end) {
+        long hash = 1125899906842597L;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + str.charAt(i);
+        }
+        return hash;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static Map<String, String> commitData(long fingerprint) {
+        return Collections.singletonMap(FINGERPRINT_KEY, Long.toHexString(fingerprint));
+    }
+
+    private void writeMovies(Directory dir, final Long2ObjectMap<StringBuilder> tags,
+                             long fingerprint) throws IOException {
+        Stopwatch timer = Stopwatch.createStarted();
+
+        IndexWriterConfig config = writerConfig(IndexWriterConfig.OpenMode.CREATE);
+        config.setMaxThreadStates(threadCount);
+
+        // the index writer is thread-safe, so each worker adds the documents it builds directly.
+        // workers run on the shared indexing pool, so concurrent builds queue for its threads
+        // instead of each starting a full set.
+        final long[] movies = dao.getEntityIds(CommonTypes.ITEM).toLongArray();
+        final IndexWriter writer = new IndexWriter(dir, config);
         try {
-            logger.info("Building Lucene movie model");
-            for (long movie: dao.getEntityIds(CommonTypes.ITEM)) {
-                logger.debug("building model for {}", movie);
-                Document doc = makeMovieDocument(movie);
-                writer.addDocument(doc);
+            logger.info("Building Lucene movie model for {} movies with {} threads", movies.length, threadCount);
+            ExecutorService executor = IndexPool.EXECUTOR;
+            List<Future<Void>> results = new ArrayList<>(threadCount);
+            try {
+                for (int t = 0; t < threadCount; t++) {
+                    final int from = (int) ((long) movies.length * t / threadCount);
+                    final int to = (int) ((long) movies.length * (t + 1) / threadCount);
+                    results.add(executor.submit(() -> {
+                        for (int i = from; i < to; i++) {
+                            writer.addDocument(makeMovieDocument(dao, movies[i], tags.get(movies[i])));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<Void> result : results) {
+                    result.get();
+                }
+                writer.commit(commitData(fingerprint));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted building movie model", e);
+            } catch (ExecutionException e) {
+                Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+                throw new RuntimeException("error building movie model", e.getCause());
+            } finally {
+                for (Future<Void> result : results) {
+                    result.cancel(true);
+                }
             }
         } finally {
             writer.close();
         }
+
+        double seconds = timer.elapsed(TimeUnit.MILLISECONDS) / 1000.0;
+        logger.info("indexed {} movies in {} ({} docs/sec)",
+                    movies.length, timer, String.format("%.0f", movies.length / seconds));
+    }
+
+    /**
+     * Update a copy of a published on-disk index, and publish the copy under its new fingerprint.
+     * Published indexes are never written in place, since other models may have them open; the
+     * copy is a sequential copy of the index files, which is much cheaper than reindexing.
+     *
+     * @param path The published index directory.
+     * @param source The open index directory.
+     * @param dao The DAO holding the current movies and tags.
+     * @param movies The movies to update (see {@link #updateMovies(Directory, DataAccessObject, LongSet, long)}).
+     * @param oldHash The sum of the hashes of the movies' current documents.
+     * @return The published directory of the updated index.
+     * @throws IOException if there is an error copying, writing or publishing the index.
+     */
+    static File updateMoviesCopy(File path, Directory source, DataAccessObject dao,
+                                 LongSet movies, long oldHash) throws IOException {
+        File root = path.getParentFile();
+        File temp = createTempDirectory(root);
+        long fingerprint;
+        try (Directory dir = new MMapDirectory(temp)) {
+            for (String file: source.listAll()) {
+                if (!file.equals(IndexWriter.WRITE_LOCK_NAME)) {
+                    source.copy(dir, file, file);
+                }
+            }
+            fingerprint = updateMovies(dir, dao, movies, oldHash);
+        } catch (IOException | RuntimeException e) {
+            deleteDirectory(temp);
+            throw e;
+        }
+        File updated = indexDirectory(root, fingerprint);
+        synchronized (lockFor(updated)) {
+            if (isCurrent(updated, fingerprint)) {
+                deleteDirectory(temp);
+            } else {
+                publish(temp, updated, fingerprint);
+            }
+        }
+        return updated;
     }
 
-    private Document makeMovieDocument(long movieId) {
+    /**
+     * Add, replace or delete the documents of some movies in an existing index.  Only the tags of
+     * the given movies are read, so the cost is proportional to the size of the change rather than
+     * to the catalog.  The changes are committed together, or not at all if there is an error.
+     *
+     * <p>The fingerprint stored with the commit is updated along with the documents.  The index
+     * must not be open in any other model (on-disk indexes are updated through
+     * {@link #updateMoviesCopy}).
+     *
+     * @param dir The index directory.
+     * @param dao The DAO holding the current movies and tags.
+     * @param movies The movies to update.  Those no longer in the DAO are deleted from the index.
+     * @param oldHash The sum of the {@linkplain #movieHash hashes} of the movies' current
+     *                documents (0 for movies not in the index).
+     * @return The fingerprint of the updated index.
+     * @throws IOException if there is an error writing the index.
+     */
+    static long updateMovies(Directory dir, DataAccessObject dao, LongSet movies, long oldHash) throws IOException {
+        Stopwatch timer = Stopwatch.createStarted();
+        int deleted = 0;
+        String stored = IndexReader.getCommitUserData(dir).get(FINGERPRINT_KEY);
+        long fingerprint = (stored != null ? Long.parseUnsignedLong(stored, 16) : 0) - oldHash;
+        IndexWriter writer = new IndexWriter(dir, writerConfig(IndexWriterConfig.OpenMode.APPEND));
+        try {
+            LongIterator iter = movies.iterator();
+            while (iter.hasNext()) {
+                long movie = iter.nextLong();
+                Term key = new Term("movie", Long.toString(movie));
+                if (dao.lookupEntity(CommonTypes.ITEM, movie) == null) {
+                    writer.deleteDocuments(key);
+                    deleted += 1;
+                    continue;
+                }
+                StringBuilder tagDoc = new StringBuilder();
+                for (Entity te: dao.query(TagData.ITEM_TAG_TYPE)
+                                   .withAttribute(TagData.ITEM_ID, movie)
+                                   .get()) {
+                    tagDoc.append(te.get(TagData.TAG))
+                          .append('\n');
+                }
+                writer.updateDocument(key, makeMovieDocument(dao, movie, tagDoc));
+                fingerprint += movieHash(movie, dao.lookupEntity(CommonTypes.ITEM, movie)
+                                                   .get(CommonAttributes.NAME), tagDoc);
+            }
+            writer.commit(commitData(fingerprint));
+        } catch (IOException | RuntimeException e) {
+            writer.rollback();
+            throw e;
+        }
+        writer.close();
+        logger.info("updated {} and deleted {} movie documents in {}",
+                    movies.size() - deleted, deleted, timer);
+        return fingerprint;
+    }
+
+    private static IndexWriterConfig writerConfig(IndexWriterConfig.OpenMode mode) {
+        Analyzer analyzer = new EnglishAnalyzer(Version.LUCENE_35);
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_35, analyzer);
+        config.setOpenMode(mode);
+        config.setRAMBufferSizeMB(RAM_BUFFER_MB);
+        return config;
+    }
+
+    /**
+     * Group the tag applications by movie, in a single pass over the tag data.
+     *
+     * @return A map from movie IDs to their tags, one per line.
+     */
+    private Long2ObjectMap<StringBuilder> collectTags() {
+        Long2ObjectMap<StringBuilder> tags = new Long2ObjectOpenHashMap<>();
+        try (ObjectStream<Entity> stream = dao.query(TagData.ITEM_TAG_TYPE).stream()) {
+            for (Entity te: stream) {
+                long movie = te.getLong(TagData.ITEM_ID);
+                StringBuilder tagDoc = tags.get(movie);
+                if (tagDoc == null) {
+                    tagDoc = new StringBuilder();
+                    tags.put(movie, tagDoc);
+                }
+                tagDoc.append(te.get(TagData.TAG))
+                      .append('\n');
+            }
+        }
+        return tags;
+    }
+
+    private static Document makeMovieDocument(DataAccessObject dao, long movieId, CharSequence tagDoc) {
         Document doc = new Document();
         Entity movie = dao.lookupEntity(CommonTypes.ITEM, movieId);
-        List<Entity> tagApps = dao.query(TagData.ITEM_TAG_TYPE)
-                                  .withAttribute(TagData.ITEM_ID, movieId)
-                                  .get();
-        StringBuilder tagDoc = new StringBuilder();
-        for (Entity te: tagApps) {
-            tagDoc.append(te.get(TagData.TAG))
-                  .append('\n');
-        }
 
         doc.add(new Field("movie", Long.toString(movieId),
                                 Field.Store.YES, Field.Index.ANALYZED, Field.TermVector.NO));
         doc.add(new Field("title", movie.get(CommonAttributes.NAME),
                           Field.Store.YES, Field.Index.ANALYZED, Field.TermVector.YES));
-        doc.add(new Field("tags", tagDoc.toString(),
+        doc.add(new Field("tags", tagDoc != null ? tagDoc.toString() : "",
                           Field.Store.YES, Field.Index.ANALYZED, Field.TermVector.YES));
         return doc;
     }
+
+    /**
+     * The maximum number of neighbors, summed over all items, that the model caches.  Each cached
+     * neighborhood costs roughly 16 bytes per neighbor.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Long.class)
+    @DefaultLong(1000000)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface NeighborCacheSize {}
+
+    /**
+     * Holder for the pool that builds Lucene indexes, created on first use.  It has one thread per
+     * processor and is shared by all builders, so models built in parallel (such as the members of
+     * a blend) share the processors rather than oversubscribing them; their work queues.
+     */
+    private static class IndexPool {
+        static final ExecutorService EXECUTOR;
+
+        static {
+            int nthreads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor pool =
+                    new ThreadPoolExecutor(nthreads, nthreads, POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<>(),
+                                           new ThreadFactoryBuilder().setDaemon(true)
+                                                                     .setNameFormat("lucene-indexer-%d")
+                                                                     .build());
+            pool.allowCoreThreadTimeOut(true);
+            EXECUTOR = pool;
+        }
+    }
+
+    /**
+     * The number of threads building the Lucene index.  0 (the default) uses one per processor;
+     * larger values are limited to the number of processors.  Index threads come from a pool
+     * shared by all builds, so concurrent builds together never use more than one thread per
+     * processor.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(0)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface IndexThreads {}
+
+    /**
+     * The directory in which to store Lucene movie indexes.  If set, the index is written to disk
+     * and memory-mapped, so it lives in the page cache rather than on the heap.  Each version of
+     * the movie titles and tags gets its own subdirectory, named by its fingerprint, which is
+     * reused by later builds (and other processes) instead of being rebuilt, and is never
+     * rewritten once complete, so models built from different data (such as evaluation folds) can
+     * share the directory.  Updates write a new subdirectory.  Subdirectories are not deleted
+     * automatically; old ones may be removed when no process is using them.  If empty (the
+     * default), the index is kept in memory.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(String.class)
+    @DefaultString("")
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface IndexDirectory {}
 }
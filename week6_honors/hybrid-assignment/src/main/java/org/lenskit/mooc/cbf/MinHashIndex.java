@@ -0,0 +1,134 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+
+import java.util.Random;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Locality-sensitive hash index over the term sets of items, for finding candidate neighbors
+ * without comparing every pair of items.
+ *
+ * <p>Each item gets a MinHash signature of {@code bands * rows} values; the probability that two
+ * items agree on one value equals the Jaccard similarity {@code s} of their term sets.  The
+ * signature is cut into bands of {@code rows} values, and items whose signatures agree on a whole
+ * band share a bucket.  Two items therefore become candidates with probability
+ * {@code 1 - (1 - s^rows)^bands}: more bands raise recall, more rows per band raise precision and
+ * shrink the buckets.
+ */
+final class MinHashIndex {
+    private final int bandCount;
+    private final long[] bandKeys;
+    private final Long2ObjectMap<int[]>[] buckets;
+
+    /**
+     * Build a MinHash index.
+     *
+     * @param n The number of items (rows).
+     * @param offsets The start of each row's terms in {@code terms} (length {@code n + 1}).
+     * @param terms The term IDs of the rows.
+     * @param bands The number of bands.
+     * @param rows The number of signature values per band.
+     * @param rng The random number generator for the hash seeds.
+     */
+    @SuppressWarnings("unchecked")
+    MinHashIndex(int n, int[] offsets, int[] terms, int bands, int rows, Random rng) {
+        bandCount = bands;
+        final long[] seeds = new long[bands * rows];
+        for (int h = 0; h < seeds.length; h++) {
+            seeds[h] = rng.nextLong();
+        }
+
+        // each band's values are folded into one key; rows without terms get no keys
+        bandKeys = new long[n * bands];
+        final boolean[] empty = new boolean[n];
+        IntStream.range(0, n).parallel().forEach(i -> {
+            if (offsets[i] == offsets[i + 1]) {
+                empty[i] = true;
+                return;
+            }
+            for (int b = 0; b < bands; b++) {
+                long key = b;
+                for (int r = 0; r < rows; r++) {
+                    long seed = seeds[b * rows + r];
+                    long min = Long.MAX_VALUE;
+                    for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+                        min = Math.min(min, mix(terms[k] ^ seed));
+                    }
+                    key = mix(key * 31 + min);
+                }
+                bandKeys[i * bands + b] = key;
+            }
+        });
+
+        buckets = new Long2ObjectMap[bands];
+        for (int b = 0; b < bands; b++) {
+            Long2ObjectMap<IntArrayList> lists = new Long2ObjectOpenHashMap<>();
+            for (int i = 0; i < n; i++) {
+                if (empty[i]) {
+                    continue;
+                }
+                long key = bandKeys[i * bands + b];
+                IntArrayList list = lists.get(key);
+                if (list == null) {
+                    list = new IntArrayList(2);
+                    lists.put(key, list);
+                }
+                list.add(i);
+            }
+            // items alone in their bucket have no candidates from this band
+            Long2ObjectMap<int[]> band = new Long2ObjectOpenHashMap<>();
+            for (Long2ObjectMap.Entry<IntArrayList> e : lists.long2ObjectEntrySet()) {
+                if (e.getValue().size() > 1) {
+                    band.put(e.getLongKey(), e.getValue().toIntArray());
+                }
+            }
+            buckets[b] = band;
+        }
+    }
+
+    /**
+     * Visit the candidate neighbors of a row.  A candidate that shares several buckets with the
+     * row is visited once per bucket, and the row itself is visited too.
+     *
+     * @param row The row.
+     * @param action The action to apply to each candidate row.
+     */
+    void forEachCandidate(int row, IntConsumer action) {
+        for (int b = 0; b < bandCount; b++) {
+            int[] bucket = buckets[b].get(bandKeys[row * bandCount + b]);
+            if (bucket != null) {
+                for (int cand : bucket) {
+                    action.accept(cand);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of buckets with more than one item.
+     * @return The number of non-trivial buckets, over all bands.
+     */
+    int getBucketCount() {
+        int count = 0;
+        for (Long2ObjectMap<int[]> band : buckets) {
+            count += band.size();
+        }
+        return count;
+    }
+
+    /**
+     * 64-bit finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
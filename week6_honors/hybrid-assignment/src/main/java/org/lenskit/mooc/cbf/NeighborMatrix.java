@@ -0,0 +1,179 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.AbstractLong2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMaps;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import it.unimi.dsi.fastutil.objects.AbstractObjectIterator;
+import it.unimi.dsi.fastutil.objects.AbstractObjectSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.LongFunction;
+import java.util.stream.IntStream;
+
+/**
+ * Precomputed item neighborhoods in compressed sparse row form.  The neighbors of the item at
+ * position {@code i} of the sorted item array are stored, sorted by ID, at positions
+ * {@code offsets[i]} (inclusive) to {@code offsets[i+1]} (exclusive) of the neighbor and score
+ * arrays.  A lookup is a binary search for the item and returns a read-only map viewing its row,
+ * without copying it.
+ */
+final class NeighborMatrix implements Serializable {
+    private static final long serialVersionUID = 3L;
+
+    private final LongSortedSet itemSet;
+    private final long[] items;
+    private final int[] offsets;
+    private final long[] neighbors;
+    private final float[] scores;
+
+    private NeighborMatrix(LongSortedSet itemSet, long[] items, int[] offsets, long[] neighbors, float[] scores) {
+        this.itemSet = itemSet;
+        this.items = items;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.scores = scores;
+    }
+
+    /**
+     * Compute the neighborhoods of a set of items in parallel.
+     *
+     * @param itemSet The items.
+     * @param neighborhood Function computing the neighborhood of an item.
+     * @return The neighbor matrix.
+     */
+    static NeighborMatrix build(LongSortedSet itemSet, LongFunction<Long2DoubleMap> neighborhood) {
+        final long[] items = itemSet.toLongArray();
+        // each row is packed into sorted arrays as soon as it is computed, so the maps can be freed
+        final long[][] rowNeighbors = new long[items.length][];
+        final float[][] rowScores = new float[items.length][];
+        IntStream.range(0, items.length).parallel().forEach(i -> {
+            Long2DoubleMap row = neighborhood.apply(items[i]);
+            long[] ids = row.keySet().toLongArray();
+            Arrays.sort(ids);
+            float[] vals = new float[ids.length];
+            for (int j = 0; j < ids.length; j++) {
+                vals[j] = (float) row.get(ids[j]);
+            }
+            rowNeighbors[i] = ids;
+            rowScores[i] = vals;
+        });
+
+        int[] offsets = new int[items.length + 1];
+        for (int i = 0; i < items.length; i++) {
+            offsets[i + 1] = offsets[i] + rowNeighbors[i].length;
+        }
+        long[] neighbors = new long[offsets[items.length]];
+        float[] scores = new float[offsets[items.length]];
+        for (int i = 0; i < items.length; i++) {
+            System.arraycopy(rowNeighbors[i], 0, neighbors, offsets[i], rowNeighbors[i].length);
+            System.arraycopy(rowScores[i], 0, scores, offsets[i], rowScores[i].length);
+        }
+        return new NeighborMatrix(itemSet, items, offsets, neighbors, scores);
+    }
+
+    /**
+     * Get the items whose neighbors are stored.
+     * @return The item set.
+     */
+    LongSortedSet getItems() {
+        return itemSet;
+    }
+
+    /**
+     * Get the neighbors of an item.
+     * @param item The item ID.
+     * @return The neighbors and their similarities (empty if the item is unknown), as a read-only
+     *         view of the item's row.
+     */
+    Long2DoubleMap getNeighbors(long item) {
+        int i = Arrays.binarySearch(items, item);
+        if (i < 0 || offsets[i] == offsets[i + 1]) {
+            return Long2DoubleMaps.EMPTY_MAP;
+        }
+        return new Row(offsets[i], offsets[i + 1]);
+    }
+
+    /**
+     * Get the total number of stored neighbors.
+     * @return The number of (item, neighbor) pairs in the matrix.
+     */
+    int getEntryCount() {
+        return neighbors.length;
+    }
+
+    /**
+     * Read-only map over one row of the matrix.
+     */
+    private final class Row extends AbstractLong2DoubleMap {
+        private static final long serialVersionUID = 1L;
+        private final int start;
+        private final int end;
+
+        Row(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private int find(long key) {
+            return Arrays.binarySearch(neighbors, start, end, key);
+        }
+
+        @Override
+        public double get(long key) {
+            int pos = find(key);
+            return pos >= 0 ? scores[pos] : defaultReturnValue();
+        }
+
+        @Override
+        public boolean containsKey(long key) {
+            return find(key) >= 0;
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return end == start;
+        }
+
+        @Override
+        public ObjectSet<Long2DoubleMap.Entry> long2DoubleEntrySet() {
+            return new AbstractObjectSet<Long2DoubleMap.Entry>() {
+                @Override
+                public ObjectIterator<Long2DoubleMap.Entry> iterator() {
+                    return new AbstractObjectIterator<Long2DoubleMap.Entry>() {
+                        private int pos = start;
+
+                        @Override
+                        public boolean hasNext() {
+                            return pos < end;
+                        }
+
+                        @Override
+                        public Long2DoubleMap.Entry next() {
+                            if (pos >= end) {
+                                throw new NoSuchElementException();
+                            }
+                            Long2DoubleMap.Entry e = new BasicEntry(neighbors[pos], scores[pos]);
+                            pos++;
+                            return e;
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return end - start;
+                }
+            };
+        }
+    }
+}
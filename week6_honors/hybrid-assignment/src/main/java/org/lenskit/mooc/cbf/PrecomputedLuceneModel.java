@@ -0,0 +1,40 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.knn.item.model.ItemItemModel;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+
+/**
+ * Lucene CBF model whose neighbors are all computed when it is built (see
+ * {@link PrecomputedLuceneModelBuilder}) and served from a compact neighbor matrix, so lookups do
+ * not touch the index.  Unlike {@link LuceneItemItemModel}, it holds no index resources, so it is
+ * shareable and serializable.  Bind {@link ItemItemModel} to this class, with a
+ * {@link org.lenskit.knn.item.ModelSize} to bound the neighborhoods, to use it.
+ */
+@Shareable
+@DefaultProvider(PrecomputedLuceneModelBuilder.class)
+public class PrecomputedLuceneModel implements ItemItemModel, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final NeighborMatrix neighbors;
+
+    PrecomputedLuceneModel(NeighborMatrix nbrs) {
+        neighbors = nbrs;
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        return neighbors.getItems();
+    }
+
+    @Nonnull
+    @Override
+    public Long2DoubleMap getNeighbors(long item) {
+        return neighbors.getNeighbors(item);
+    }
+}
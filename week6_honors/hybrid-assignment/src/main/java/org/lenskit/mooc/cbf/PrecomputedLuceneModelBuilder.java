@@ -0,0 +1,39 @@
+package org.lenskit.mooc.cbf;
+
+import com.google.common.base.Stopwatch;
+import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.IOException;
+
+/**
+ * Builds a {@link PrecomputedLuceneModel} by computing the neighbors of every item of a
+ * {@link LuceneItemItemModel} in parallel.  The Lucene model is closed afterwards.
+ */
+public class PrecomputedLuceneModelBuilder implements Provider<PrecomputedLuceneModel> {
+    private static final Logger logger = LoggerFactory.getLogger(PrecomputedLuceneModelBuilder.class);
+    private final LuceneItemItemModel luceneModel;
+
+    @Inject
+    public PrecomputedLuceneModelBuilder(@Transient LuceneItemItemModel model) {
+        luceneModel = model;
+    }
+
+    @Override
+    public PrecomputedLuceneModel get() {
+        logger.info("precomputing neighbors of {} items", luceneModel.getItemUniverse().size());
+        Stopwatch timer = Stopwatch.createStarted();
+        NeighborMatrix matrix = NeighborMatrix.build(luceneModel.getItemUniverse(),
+                                                     luceneModel::getNeighborsImpl);
+        logger.info("computed {} neighbors in {}", matrix.getEntryCount(), timer);
+        try {
+            luceneModel.close();
+        } catch (IOException e) {
+            throw new RuntimeException("I/O error closing movie model", e);
+        }
+        return new PrecomputedLuceneModel(matrix);
+    }
+}
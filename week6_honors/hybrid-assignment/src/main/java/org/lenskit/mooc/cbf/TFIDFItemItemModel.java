@@ -0,0 +1,41 @@
+package org.lenskit.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.lenskit.inject.Shareable;
+import org.lenskit.knn.item.model.ItemItemModel;
+
+import javax.annotation.Nonnull;
+import java.io.Serializable;
+
+/**
+ * Content-based item-item model using the cosine similarity of TF-IDF vectors over movie titles,
+ * genres and tags.  Unlike {@link LuceneItemItemModel}, it does not need a text index: the
+ * neighbors of every item are computed when the model is built (see {@link TFIDFModelBuilder})
+ * and served from a compact neighbor matrix.
+ */
+@Shareable
+@DefaultProvider(TFIDFModelBuilder.class)
+public class TFIDFItemItemModel implements ItemItemModel, Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final LongSortedSet itemSet;
+    private final NeighborMatrix neighbors;
+
+    TFIDFItemItemModel(LongSortedSet items, NeighborMatrix nbrs) {
+        itemSet = items;
+        neighbors = nbrs;
+    }
+
+    @Override
+    public LongSortedSet getItemUniverse() {
+        return itemSet;
+    }
+
+    @Nonnull
+    @Override
+    public Long2DoubleMap getNeighbors(long item) {
+        return neighbors.getNeighbors(item);
+    }
+}
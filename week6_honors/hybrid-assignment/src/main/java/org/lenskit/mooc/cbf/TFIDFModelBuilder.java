@@ -0,0 +1,358 @@
+package org.lenskit.mooc.cbf;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.data.entities.CommonAttributes;
+import org.lenskit.data.entities.CommonTypes;
+import org.lenskit.data.entities.Entity;
+import org.lenskit.inject.Parameter;
+import org.lenskit.inject.Transient;
+import org.lenskit.knn.item.ModelSize;
+import org.lenskit.util.collections.LongUtils;
+import org.lenskit.util.io.ObjectStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+/**
+ * Builder for {@link TFIDFItemItemModel}s.
+ *
+ * <p>Each movie is described by a bag of terms: the words of its title, its genres, and its tags
+ * (each tag is one term, lower-cased).  The builder weighs the terms by TF-IDF, with logarithmic
+ * term frequencies, normalizes each movie's vector to unit length, and stores the vectors in
+ * compressed sparse row arrays along with an inverted index from terms to movies.  The cosine
+ * similarities of a movie are then computed by walking the postings of its terms and accumulating
+ * the products into a dense score array, so only pairs of movies that share a term are ever
+ * touched.  Terms that occur in more than half of the movies carry almost no information and are
+ * pruned, which removes the longest postings lists.  The movies are processed in parallel.
+ *
+ * <p>Computing every movie's similarities this way is still quadratic in the catalog size when
+ * many movies share terms.  If {@link HashBands} is set, the builder instead hashes each movie's
+ * term set with MinHash (see {@link MinHashIndex}) and computes exact similarities only with the
+ * movies that share a bucket with it, trading some recall of weak neighbors for speed.
+ */
+public class TFIDFModelBuilder implements Provider<TFIDFItemItemModel> {
+    private static final Logger logger = LoggerFactory.getLogger(TFIDFModelBuilder.class);
+    private static final Pattern WORD_SEPARATOR = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final double MAX_DOCUMENT_FRACTION = 0.5;
+
+    private final DataAccessObject dao;
+    private final int neighborCount;
+    private final int bandCount;
+    private final int bandRows;
+    private final Random random;
+
+    @Inject
+    public TFIDFModelBuilder(@Transient DataAccessObject dao,
+                             @ModelSize int nnbrs,
+                             @HashBands int bands,
+                             @HashBandSize int rows,
+                             @Transient Random rng) {
+        Preconditions.checkArgument(bands >= 0, "band count must be non-negative");
+        Preconditions.checkArgument(rows > 0, "band size must be positive");
+        this.dao = dao;
+        neighborCount = nnbrs;
+        bandCount = bands;
+        bandRows = rows;
+        random = rng;
+    }
+
+    @Override
+    public TFIDFItemItemModel get() {
+        Stopwatch timer = Stopwatch.createStarted();
+        LongSortedSet items = LongUtils.packedSet(dao.getEntityIds(CommonTypes.ITEM));
+        final long[] ids = items.toLongArray();
+        final int n = ids.length;
+        Long2IntMap index = new Long2IntOpenHashMap(n);
+        index.defaultReturnValue(-1);
+        for (int i = 0; i < n; i++) {
+            index.put(ids[i], i);
+        }
+
+        // collect the term IDs of each movie
+        Object2IntMap<String> dictionary = new Object2IntOpenHashMap<>();
+        dictionary.defaultReturnValue(-1);
+        IntArrayList[] docs = new IntArrayList[n];
+        for (int i = 0; i < n; i++) {
+            docs[i] = new IntArrayList();
+            Entity movie = dao.lookupEntity(CommonTypes.ITEM, ids[i]);
+            String title = movie.get(CommonAttributes.NAME);
+            if (title != null) {
+                for (String word : WORD_SEPARATOR.split(title.toLowerCase(Locale.ROOT))) {
+                    if (!word.isEmpty()) {
+                        docs[i].add(termId(dictionary, "title:" + word));
+                    }
+                }
+            }
+            String genres = movie.get(TagData.GENRES);
+            if (genres != null) {
+                for (String genre : genres.split("\\|")) {
+                    docs[i].add(termId(dictionary, "genre:" + genre.toLowerCase(Locale.ROOT)));
+                }
+            }
+        }
+        try (ObjectStream<Entity> tags = dao.query(TagData.ITEM_TAG_TYPE).stream()) {
+            for (Entity tag : tags) {
+                int i = index.get(tag.getLong(TagData.ITEM_ID));
+                String text = tag.get(TagData.TAG);
+                if (i >= 0 && text != null) {
+                    docs[i].add(termId(dictionary, "tag:" + text.trim().toLowerCase(Locale.ROOT)));
+                }
+            }
+        }
+        final int nterms = dictionary.size();
+        logger.info("collected {} distinct terms for {} movies in {}", nterms, n, timer);
+
+        // sort each movie's terms so equal terms are adjacent, and count document frequencies
+        int[] docFreq = new int[nterms];
+        for (IntArrayList doc : docs) {
+            int[] terms = doc.elements();
+            Arrays.sort(terms, 0, doc.size());
+            for (int k = 0; k < doc.size(); k++) {
+                if (k == 0 || terms[k] != terms[k - 1]) {
+                    docFreq[terms[k]] += 1;
+                }
+            }
+        }
+        double[] idf = new double[nterms];
+        int pruned = 0;
+        for (int t = 0; t < nterms; t++) {
+            if (docFreq[t] > MAX_DOCUMENT_FRACTION * n) {
+                pruned += 1;
+            } else {
+                idf[t] = Math.log((double) n / docFreq[t]);
+            }
+        }
+        logger.debug("pruned {} terms occurring in more than {}% of movies", pruned, MAX_DOCUMENT_FRACTION * 100);
+
+        // the unit-length TF-IDF vectors, in compressed sparse row form
+        int[] rowOffsets = new int[n + 1];
+        IntArrayList vecTerms = new IntArrayList();
+        FloatArrayList vecWeights = new FloatArrayList();
+        for (int i = 0; i < n; i++) {
+            int[] terms = docs[i].elements();
+            int size = docs[i].size();
+            int start = vecTerms.size();
+            double norm = 0;
+            for (int k = 0; k < size; ) {
+                int t = terms[k];
+                int tf = 0;
+                while (k < size && terms[k] == t) {
+                    tf += 1;
+                    k += 1;
+                }
+                double w = (1 + Math.log(tf)) * idf[t];
+                if (w > 0) {
+                    vecTerms.add(t);
+                    vecWeights.add((float) w);
+                    norm += w * w;
+                }
+            }
+            if (norm > 0) {
+                float[] weights = vecWeights.elements();
+                double scale = 1 / Math.sqrt(norm);
+                for (int k = start; k < vecWeights.size(); k++) {
+                    weights[k] *= scale;
+                }
+            }
+            rowOffsets[i + 1] = vecTerms.size();
+            docs[i] = null;
+        }
+        final int[] rowTerms = vecTerms.toIntArray();
+        final float[] rowWeights = vecWeights.toFloatArray();
+
+        // the inverted index, built by counting sort on the terms
+        final int[] postOffsets = new int[nterms + 1];
+        for (int t : rowTerms) {
+            postOffsets[t + 1] += 1;
+        }
+        for (int t = 0; t < nterms; t++) {
+            postOffsets[t + 1] += postOffsets[t];
+        }
+        final int[] postRows = new int[rowTerms.length];
+        final float[] postWeights = new float[rowTerms.length];
+        int[] fill = Arrays.copyOf(postOffsets, nterms);
+        for (int i = 0; i < n; i++) {
+            for (int k = rowOffsets[i]; k < rowOffsets[i + 1]; k++) {
+                int pos = fill[rowTerms[k]]++;
+                postRows[pos] = i;
+                postWeights[pos] = rowWeights[k];
+            }
+        }
+        logger.info("built TF-IDF vectors with {} entries in {}", rowTerms.length, timer);
+
+        final ThreadLocal<Accumulator> accumulators = ThreadLocal.withInitial(() -> new Accumulator(n));
+        NeighborMatrix matrix;
+        if (bandCount > 0) {
+            // approximate: exact similarities, but only with the candidates from the hash index
+            final MinHashIndex lsh = new MinHashIndex(n, rowOffsets, rowTerms, bandCount, bandRows, random);
+            logger.info("hashed movies into {} candidate buckets in {}", lsh.getBucketCount(), timer);
+            matrix = NeighborMatrix.build(items, item -> {
+                final int i = index.get(item);
+                final Accumulator acc = accumulators.get();
+                lsh.forEachCandidate(i, j -> {
+                    if (j != i && !acc.contains(j)) {
+                        acc.add(j, dot(rowOffsets, rowTerms, rowWeights, i, j));
+                    }
+                });
+                return acc.drain(ids, i, neighborCount);
+            });
+        } else {
+            matrix = NeighborMatrix.build(items, item -> {
+                int i = index.get(item);
+                Accumulator acc = accumulators.get();
+                for (int k = rowOffsets[i]; k < rowOffsets[i + 1]; k++) {
+                    int t = rowTerms[k];
+                    double w = rowWeights[k];
+                    for (int p = postOffsets[t]; p < postOffsets[t + 1]; p++) {
+                        acc.add(postRows[p], w * postWeights[p]);
+                    }
+                }
+                return acc.drain(ids, i, neighborCount);
+            });
+        }
+        logger.info("computed {} neighbors for {} movies in {}", matrix.getEntryCount(), n, timer);
+        return new TFIDFItemItemModel(items, matrix);
+    }
+
+    /**
+     * Compute the dot product of two rows of a sparse matrix whose rows are sorted by term.
+     */
+    private static double dot(int[] offsets, int[] terms, float[] weights, int a, int b) {
+        double sum = 0;
+        int i = offsets[a], iEnd = offsets[a + 1];
+        int j = offsets[b], jEnd = offsets[b + 1];
+        while (i < iEnd && j < jEnd) {
+            if (terms[i] < terms[j]) {
+                i++;
+            } else if (terms[i] > terms[j]) {
+                j++;
+            } else {
+                sum += weights[i++] * weights[j++];
+            }
+        }
+        return sum;
+    }
+
+    private static int termId(Object2IntMap<String> dictionary, String term) {
+        int id = dictionary.getInt(term);
+        if (id < 0) {
+            id = dictionary.size();
+            dictionary.put(term, id);
+        }
+        return id;
+    }
+
+    /**
+     * Dense per-thread accumulator for the similarities of one movie.
+     */
+    private static class Accumulator {
+        private final double[] scores;
+        private final IntArrayList touched = new IntArrayList();
+
+        Accumulator(int n) {
+            scores = new double[n];
+        }
+
+        boolean contains(int row) {
+            return scores[row] != 0;
+        }
+
+        void add(int row, double value) {
+            if (value != 0 && scores[row] == 0) {
+                touched.add(row);
+            }
+            scores[row] += value;
+        }
+
+        /**
+         * Extract the top neighbors and reset the accumulator.
+         *
+         * @param ids The item IDs of the rows.
+         * @param self The row whose neighbors are being computed (excluded from the result).
+         * @param count The number of neighbors to keep, or 0 to keep all of them.
+         * @return The neighbors and their similarities.
+         */
+        Long2DoubleMap drain(long[] ids, int self, int count) {
+            int size = touched.size();
+            int[] rows = touched.elements();
+            scores[self] = 0;
+            // the count-th largest score is the admission threshold
+            double threshold = 0;
+            if (count > 0 && size > count) {
+                double[] sorted = new double[size];
+                for (int k = 0; k < size; k++) {
+                    sorted[k] = scores[rows[k]];
+                }
+                Arrays.sort(sorted);
+                threshold = sorted[size - count];
+            }
+
+            // admit everything above the threshold first, then fill the remaining slots from the
+            // rows tied at it, so ties early in the row order cannot crowd out better neighbors
+            int limit = count > 0 ? Math.min(size, count) : size;
+            Long2DoubleMap result = new Long2DoubleOpenHashMap(limit);
+            for (int k = 0; k < size; k++) {
+                double score = scores[rows[k]];
+                if (score > 0 && score > threshold) {
+                    result.put(ids[rows[k]], score);
+                }
+            }
+            for (int k = 0; k < size && result.size() < limit; k++) {
+                double score = scores[rows[k]];
+                if (score > 0 && score == threshold) {
+                    result.put(ids[rows[k]], score);
+                }
+            }
+            for (int k = 0; k < size; k++) {
+                scores[rows[k]] = 0;
+            }
+            touched.clear();
+            return result;
+        }
+    }
+
+    /**
+     * The number of MinHash bands used to find candidate neighbors.  More bands find more of the
+     * true neighbors at the cost of more candidates.  The default of 0 disables hashing and
+     * compares each movie with every movie sharing a term.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(0)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface HashBands {}
+
+    /**
+     * The number of MinHash values per band.  Larger bands only match movies with more similar term
+     * sets, giving fewer candidates.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(4)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface HashBandSize {}
+}
@@ -21,4 +21,9 @@ public final class TagData {
      * The attribute for item tags.
      */
     public static final TypedName<String> TAG = TypedName.create("tag", String.class);
+
+    /**
+     * The attribute for movie genres, separated by {@code |}.
+     */
+    public static final TypedName<String> GENRES = TypedName.create("genres", String.class);
 }
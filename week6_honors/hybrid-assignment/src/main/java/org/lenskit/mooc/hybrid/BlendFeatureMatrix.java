@@ -0,0 +1,163 @@
+package org.lenskit.mooc.hybrid;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.lenskit.api.ItemScorer;
+import org.lenskit.api.Result;
+import org.lenskit.api.ResultMap;
+import org.lenskit.bias.BiasModel;
+import org.lenskit.data.ratings.Rating;
+import org.lenskit.data.ratings.RatingSummary;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Dense matrix of the explanatory variables of the logistic blend, with one row per tune rating.
+ * The columns are:
+ *
+ * <ol start="0">
+ * <li>the baseline score (from a bias model);</li>
+ * <li>the item's log popularity (ln |R_i|);</li>
+ * <li>and one column per component scorer, holding its offset from the baseline (0 if the scorer
+ * cannot score the item).</li>
+ * </ol>
+ *
+ * <p>The features are stored row-major in a single array, and the tune labels (&plusmn;1) in a
+ * parallel array, so training reads them without hashing, boxing or scorer calls.
+ */
+public final class BlendFeatureMatrix {
+    private static final Logger logger = LoggerFactory.getLogger(BlendFeatureMatrix.class);
+
+    private final int rowCount;
+    private final int columnCount;
+    private final double[] features;
+    private final double[] labels;
+
+    private BlendFeatureMatrix(int nrows, int ncols, double[] feats, double[] labs) {
+        rowCount = nrows;
+        columnCount = ncols;
+        features = feats;
+        labels = labs;
+    }
+
+    /**
+     * Compute the feature matrix for a set of tune ratings.  Each component scorer's column is
+     * computed on its own thread, scoring all of a user's tune items with a single call.
+     *
+     * @param ratings The tune ratings; their values are the labels.
+     * @param baseline The baseline bias model.
+     * @param summary The rating summary, for item popularity.
+     * @param scorers The component item scorers.
+     * @return The feature matrix.
+     */
+    public static BlendFeatureMatrix build(List<Rating> ratings, BiasModel baseline,
+                                           RatingSummary summary, List<ItemScorer> scorers) {
+        final int nrows = ratings.size();
+        final int ncols = 2 + scorers.size();
+        final double[] features = new double[nrows * ncols];
+        final double[] labels = new double[nrows];
+        final double[] baselines = new double[nrows];
+
+        // group the tune rows by user, so each scorer is called once per user
+        Long2ObjectMap<IntArrayList> userRows = new Long2ObjectOpenHashMap<>();
+        Long2ObjectMap<LongArrayList> userItems = new Long2ObjectOpenHashMap<>();
+        for (int r = 0; r < nrows; r++) {
+            Rating rating = ratings.get(r);
+            long user = rating.getUserId();
+            long item = rating.getItemId();
+            labels[r] = rating.getValue();
+            baselines[r] = baseline.getIntercept() + baseline.getItemBias(item) + baseline.getUserBias(user);
+            features[r * ncols] = baselines[r];
+            features[r * ncols + 1] = Math.log(summary.getItemRatingCount(item));
+
+            IntArrayList rows = userRows.get(user);
+            if (rows == null) {
+                rows = new IntArrayList();
+                userRows.put(user, rows);
+                userItems.put(user, new LongArrayList());
+            }
+            rows.add(r);
+            userItems.get(user).add(item);
+        }
+
+        logger.info("computing {} blend features for {} tune ratings ({} users)",
+                    ncols, nrows, userRows.size());
+        IntStream.range(0, scorers.size()).parallel().forEach(s -> {
+            ItemScorer scorer = scorers.get(s);
+            int col = 2 + s;
+            for (Long2ObjectMap.Entry<IntArrayList> e : userRows.long2ObjectEntrySet()) {
+                long user = e.getLongKey();
+                IntArrayList rows = e.getValue();
+                LongArrayList items = userItems.get(user);
+                ResultMap scores = scorer.scoreWithDetails(user, items);
+                for (int i = 0; i < rows.size(); i++) {
+                    int r = rows.getInt(i);
+                    // unscored items stay at 0, no offset from the baseline
+                    Result score = scores.get(items.getLong(i));
+                    if (score != null) {
+                        features[r * ncols + col] = score.getScore() - baselines[r];
+                    }
+                }
+            }
+            logger.debug("computed features for scorer {}", s);
+        });
+
+        return new BlendFeatureMatrix(nrows, ncols, features, labels);
+    }
+
+    /**
+     * Get the number of rows (tune ratings).
+     * @return The number of rows.
+     */
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Get the number of columns (explanatory variables).
+     * @return The number of columns.
+     */
+    public int getColumnCount() {
+        return columnCount;
+    }
+
+    /**
+     * Get a feature value.
+     * @param row The row number.
+     * @param col The column number.
+     * @return The feature value.
+     */
+    public double get(int row, int col) {
+        return features[row * columnCount + col];
+    }
+
+    /**
+     * Get the label of a row.
+     * @param row The row number.
+     * @return The label (1 for rated items, -1 for negative samples).
+     */
+    public double getLabel(int row) {
+        return labels[row];
+    }
+
+    /**
+     * Get the underlying feature array.  Row {@code r} starts at {@code r * getColumnCount()}.
+     * @return The row-major feature array (must not be modified).
+     */
+    double[] getFeatureArray() {
+        return features;
+    }
+
+    /**
+     * Get the underlying label array.
+     * @return The labels (must not be modified).
+     */
+    double[] getLabelArray() {
+        return labels;
+    }
+}
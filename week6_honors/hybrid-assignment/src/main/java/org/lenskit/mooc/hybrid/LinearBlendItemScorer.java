@@ -1,28 +1,42 @@
 package org.lenskit.mooc.hybrid;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
 import org.lenskit.api.ItemScorer;
 import org.lenskit.api.Result;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
 import org.lenskit.bias.BiasModel;
 import org.lenskit.results.Results;
+import org.lenskit.util.collections.LongUtils;
 
 import javax.annotation.Nonnull;
 import javax.inject.Inject;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * Item scorer that computes a linear blend of two scorers' scores.
  *
- * <p>This scorer takes two underlying scorers and blends their scores.
+ * <p>This scorer takes two underlying scorers and blends their scores.  Each scorer is called once
+ * per request for the whole item set, optionally on two threads (see {@link ParallelBlend}).
+ * Parallel blends score both sides on a dedicated pool rather than the common fork-join pool, so
+ * a slow scorer blocked on I/O does not starve parallel streams elsewhere.  If either side fails,
+ * the other is cancelled (without interrupting it, as interrupts close any NIO channel it is
+ * reading) and the failure is thrown.
  */
 public class LinearBlendItemScorer extends AbstractItemScorer {
     private final BiasModel biasModel;
     private final ItemScorer leftScorer, rightScorer;
     private final double blendWeight;
+    private final boolean parallel;
 
     /**
      * Construct a popularity-blending item scorer.
@@ -31,51 +45,94 @@ public class LinearBlendItemScorer extends AbstractItemScorer {
      * @param left The first item scorer to use.
      * @param right The second item scorer to use.
      * @param weight The weight to give popularity when ranking.
+     * @param par Whether to score the two sides concurrently.
      */
     @Inject
     public LinearBlendItemScorer(BiasModel bias,
                                  @Left ItemScorer left,
                                  @Right ItemScorer right,
-                                 @BlendWeight double weight) {
+                                 @BlendWeight double weight,
+                                 @ParallelBlend boolean par) {
         Preconditions.checkArgument(weight >= 0 && weight <= 1, "weight out of range");
         biasModel = bias;
         leftScorer = left;
         rightScorer = right;
         blendWeight = weight;
+        parallel = par;
     }
 
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
-        List<Result> results = new ArrayList<>();
-
-        // My code:
-        // Compute hybrid scores
-        for (Long item : items) {
+        LongSet itemSet = LongUtils.asLongSet(items);
+        ResultMap leftScores, rightScores;
+        if (parallel) {
+            CompletionService<ResultMap> service = new ExecutorCompletionService<>(BlendPool.EXECUTOR);
+            Future<ResultMap> left = service.submit(() -> leftScorer.scoreWithDetails(user, itemSet));
+            Future<ResultMap> right = service.submit(() -> rightScorer.scoreWithDetails(user, itemSet));
+            try {
+                // wait for whichever side finishes first, so a failure cancels the other at once
+                service.take().get();
+                service.take().get();
+                leftScores = left.get();
+                rightScores = right.get();
+            } catch (InterruptedException e) {
+                left.cancel(false);
+                right.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted scoring blend", e);
+            } catch (ExecutionException e) {
+                left.cancel(false);
+                right.cancel(false);
+                throw Throwables.propagate(e.getCause());
+            }
+        } else {
+            leftScores = leftScorer.scoreWithDetails(user, itemSet);
+            rightScores = rightScorer.scoreWithDetails(user, itemSet);
+        }
 
+        // start from the baseline and add each side's weighted offset; unscored items have offset 0
+        Long2DoubleMap baselines = new Long2DoubleOpenHashMap(itemSet.size());
+        Long2DoubleOpenHashMap blend = new Long2DoubleOpenHashMap(itemSet.size());
+        LongIterator iter = itemSet.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
             double baseline = biasModel.getIntercept() + biasModel.getItemBias(item) + biasModel.getUserBias(user);
-            double leftOffset, rightOffset;
-
-            if (leftScorer.score(user, item) != null) {
-                leftOffset = leftScorer.score(user, item).getScore() - baseline;
-            }
-            else {
-                leftOffset = 0;
-            }
+            baselines.put(item, baseline);
+            blend.put(item, baseline);
+        }
+        addOffsets(blend, baselines, leftScores, 1 - blendWeight);
+        addOffsets(blend, baselines, rightScores, blendWeight);
 
-            if (rightScorer.score(user, item) != null) {
-                rightOffset = rightScorer.score(user, item).getScore() - baseline;
-            }
-            else {
-                rightOffset = 0;
-            }
+        List<Result> results = new ArrayList<>(blend.size());
+        for (Long2DoubleMap.Entry e : blend.long2DoubleEntrySet()) {
+            results.add(Results.create(e.getLongKey(), e.getDoubleValue()));
+        }
+        return Results.newResultMap(results);
+    }
 
-            double prediction = baseline + (1 - blendWeight) * leftOffset + blendWeight * rightOffset;
+    /**
+     * Holder for the pool scoring the sides of parallel blends, created on first use.  It grows as
+     * needed, since a side may itself be a parallel blend waiting on the pool; its threads are
+     * daemons and exit when idle.
+     */
+    private static class BlendPool {
+        static final ExecutorService EXECUTOR =
+                Executors.newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true)
+                                                                        .setNameFormat("blend-scorer-%d")
+                                                                        .build());
+    }
 
-            Result r = Results.create(item, prediction);
-            results.add(r);
+    /**
+     * Add one side's weighted offsets from the baseline into the blended scores.
+     */
+    private static void addOffsets(Long2DoubleOpenHashMap blend, Long2DoubleMap baselines,
+                                   ResultMap scores, double weight) {
+        for (Result score : scores) {
+            long item = score.getId();
+            if (blend.containsKey(item)) {
+                blend.addTo(item, weight * (score.getScore() - baselines.get(item)));
+            }
         }
-
-        return Results.newResultMap(results);
     }
 }
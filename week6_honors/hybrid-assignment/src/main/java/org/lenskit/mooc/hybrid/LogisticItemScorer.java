@@ -1,8 +1,10 @@
 package org.lenskit.mooc.hybrid;
 
+import it.unimi.dsi.fastutil.longs.Long2DoubleMap;
+import it.unimi.dsi.fastutil.longs.Long2DoubleOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import org.apache.commons.math3.linear.RealVector;
-import org.lenskit.api.ItemScorer;
 import org.lenskit.api.Result;
 import org.lenskit.api.ResultMap;
 import org.lenskit.basic.AbstractItemScorer;
@@ -39,39 +41,38 @@ public class LogisticItemScorer extends AbstractItemScorer {
     @Nonnull
     @Override
     public ResultMap scoreWithDetails(long user, @Nonnull Collection<Long> items) {
-
-        // My code:
-        // Implement item scorer
-        // throw new UnsupportedOperationException("item scorer not implemented");
-
         LongSet itemSet = LongUtils.asLongSet(items);
-        List<Result> results = new ArrayList<>();
-
-        double model_int = logisticModel.getIntercept();
-        RealVector model_coef = logisticModel.getCoefficients();
-
-        for(Long item : itemSet) {
-            double baseline_bias = biasModel.getIntercept() + biasModel.getItemBias(item) +
-                    biasModel.getUserBias(user);
-            double log_popularity = Math.log(ratingSummary.getItemRatingCount(item));
+        RealVector coef = logisticModel.getCoefficients();
 
-            double linear_out = model_int + model_coef.getEntry(0) * baseline_bias +
-                    model_coef.getEntry(1) * log_popularity;
+        // the baseline and popularity terms, then each scorer's offset, accumulated per item
+        Long2DoubleMap baselines = new Long2DoubleOpenHashMap(itemSet.size());
+        Long2DoubleOpenHashMap linear = new Long2DoubleOpenHashMap(itemSet.size());
+        LongIterator iter = itemSet.iterator();
+        while (iter.hasNext()) {
+            long item = iter.nextLong();
+            double baseline = biasModel.getIntercept() + biasModel.getItemBias(item) + biasModel.getUserBias(user);
+            double logPopularity = Math.log(ratingSummary.getItemRatingCount(item));
+            baselines.put(item, baseline);
+            linear.put(item, logisticModel.getIntercept() + coef.getEntry(0) * baseline
+                    + coef.getEntry(1) * logPopularity);
+        }
 
-            for (int i = 2; i < model_coef.getDimension(); i++) {
-                if (recommenders.getItemScorers().get(i - 2).score(user, item) != null) {
-                    double model_score = recommenders.getItemScorers().get(i - 2).score(user, item).getScore() - baseline_bias;
-                    linear_out += model_coef.getEntry(i) * model_score;
+        // one call per component scorer, all at once; unscored items keep a 0 offset from the baseline
+        List<ResultMap> componentScores = recommenders.scoreAll(user, itemSet);
+        for (int i = 0; i < componentScores.size(); i++) {
+            double weight = coef.getEntry(i + 2);
+            for (Result score : componentScores.get(i)) {
+                long item = score.getId();
+                if (linear.containsKey(item)) {
+                    linear.addTo(item, weight * (score.getScore() - baselines.get(item)));
                 }
             }
-
-            double pred = LogisticModel.sigmoid(linear_out);
-            Result r = Results.create(item, pred);
-            // Store the results in 'results'
-            results.add(r);
         }
 
+        List<Result> results = new ArrayList<>(linear.size());
+        for (Long2DoubleMap.Entry e : linear.long2DoubleEntrySet()) {
+            results.add(Results.create(e.getLongKey(), LogisticModel.sigmoid(e.getDoubleValue())));
+        }
         return Results.newResultMap(results);
-
     }
 }
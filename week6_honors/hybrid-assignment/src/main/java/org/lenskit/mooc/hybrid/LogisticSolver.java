@@ -0,0 +1,17 @@
+package org.lenskit.mooc.hybrid;
+
+import org.grouplens.grapht.annotation.DefaultImplementation;
+
+/**
+ * Strategy for fitting the coefficients of the logistic blend to the precomputed tune features.
+ */
+@DefaultImplementation(SGDLogisticSolver.class)
+public interface LogisticSolver {
+    /**
+     * Fit a logistic model.
+     *
+     * @param features The explanatory variables and labels of the tune ratings.
+     * @return The model, with one coefficient per column of {@code features}.
+     */
+    LogisticModel fit(BlendFeatureMatrix features);
+}
@@ -0,0 +1,213 @@
+package org.lenskit.mooc.hybrid;
+
+import com.google.common.base.Stopwatch;
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.ArrayRealVector;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
+import org.apache.commons.math3.linear.RealVector;
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+import java.util.stream.IntStream;
+
+/**
+ * Logistic solver using Newton's method (iteratively reweighted least squares) on the full tune
+ * set.  The blend has only a handful of coefficients, so the Hessian is tiny and each iteration
+ * costs about one pass over the feature matrix; the solver typically converges in five to ten
+ * passes where stochastic gradient descent needs a hundred.  The gradient and Hessian are
+ * accumulated over blocks of rows in parallel.
+ *
+ * <p>A small ridge penalty on the coefficients (not the intercept, which would otherwise be pulled
+ * towards a 50% base rate) keeps the Hessian positive definite even if a component scorer's
+ * column is all zeros, and each step is halved until it decreases the objective.
+ */
+public class NewtonLogisticSolver implements LogisticSolver {
+    private static final Logger logger = LoggerFactory.getLogger(NewtonLogisticSolver.class);
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_HALVINGS = 20;
+
+    private final int iterationCount;
+    private final double tolerance;
+    private final double regularization;
+
+    @Inject
+    public NewtonLogisticSolver(@IterationCount int niters,
+                                @Tolerance double tol,
+                                @Regularization double reg) {
+        iterationCount = niters;
+        tolerance = tol;
+        regularization = reg;
+    }
+
+    @Override
+    public LogisticModel fit(BlendFeatureMatrix features) {
+        final int p = features.getColumnCount();
+        final int m = p + 1;
+        logger.info("fitting logistic blend to {} tune ratings with Newton's method", features.getRowCount());
+        Stopwatch timer = Stopwatch.createStarted();
+
+        // weights[0] is the intercept, weights[1..] the coefficients
+        double[] weights = new double[m];
+        double[] stats = accumulate(features, weights);
+        double objective = objective(stats, weights);
+        for (int iter = 1; iter <= iterationCount; iter++) {
+            double[][] hessian = new double[m][m];
+            double[] gradient = new double[m];
+            for (int j = 0; j < m; j++) {
+                gradient[j] = stats[1 + j];
+                for (int k = 0; k < m; k++) {
+                    hessian[j][k] = stats[1 + m + j * m + k];
+                }
+                // the intercept (j = 0) is not penalized
+                if (j > 0) {
+                    gradient[j] += regularization * weights[j];
+                    hessian[j][j] += regularization;
+                }
+            }
+            RealVector step = new CholeskyDecomposition(new Array2DRowRealMatrix(hessian, false))
+                    .getSolver()
+                    .solve(new ArrayRealVector(gradient, false));
+
+            double[] trial = new double[m];
+            double[] trialStats = null;
+            double trialObjective = Double.POSITIVE_INFINITY;
+            double scale = 1;
+            for (int h = 0; h < MAX_HALVINGS && !(trialObjective <= objective); h++, scale *= 0.5) {
+                for (int j = 0; j < m; j++) {
+                    trial[j] = weights[j] - scale * step.getEntry(j);
+                }
+                trialStats = accumulate(features, trial);
+                trialObjective = objective(trialStats, trial);
+            }
+            if (!(trialObjective <= objective)) {
+                logger.info("no descent step found after {} iterations, stopping", iter);
+                break;
+            }
+
+            double change = (objective - trialObjective) / objective;
+            weights = trial;
+            stats = trialStats;
+            objective = trialObjective;
+            logger.debug("iteration {}: log-loss {} (relative change {})", iter, stats[0], change);
+            if (change < tolerance) {
+                logger.info("converged after {} iterations", iter);
+                break;
+            }
+        }
+        logger.info("fit logistic blend in {} with log-loss {}", timer, stats[0]);
+
+        double[] coef = new double[p];
+        System.arraycopy(weights, 1, coef, 0, p);
+        return LogisticModel.create(weights[0], coef);
+    }
+
+    /**
+     * Compute the regularized objective.
+     * @param stats The statistics from {@link #accumulate(BlendFeatureMatrix, double[])}.
+     * @param weights The weights the statistics were computed for.
+     * @return The mean log-loss plus the ridge penalty on the coefficients.
+     */
+    private double objective(double[] stats, double[] weights) {
+        double norm = 0;
+        for (int j = 1; j < weights.length; j++) {
+            norm += weights[j] * weights[j];
+        }
+        return stats[0] + 0.5 * regularization * norm;
+    }
+
+    /**
+     * Compute the mean log-loss and its gradient and Hessian with respect to the weights.
+     *
+     * @param features The feature matrix.
+     * @param weights The intercept followed by the coefficients.
+     * @return An array holding the loss, then the gradient (length {@code m}), then the row-major
+     * Hessian ({@code m * m}), where {@code m} is the length of {@code weights}.
+     */
+    static double[] accumulate(BlendFeatureMatrix features, double[] weights) {
+        final double[] x = features.getFeatureArray();
+        final double[] y = features.getLabelArray();
+        final int p = features.getColumnCount();
+        final int m = p + 1;
+        final int n = features.getRowCount();
+        final int nblocks = (n + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+        double[] stats = IntStream.range(0, nblocks).parallel().mapToObj(b -> {
+            double[] local = new double[1 + m + m * m];
+            double[] row = new double[m];
+            row[0] = 1;
+            int end = Math.min(n, (b + 1) * BLOCK_SIZE);
+            for (int r = b * BLOCK_SIZE; r < end; r++) {
+                System.arraycopy(x, r * p, row, 1, p);
+                double linear = 0;
+                for (int j = 0; j < m; j++) {
+                    linear += weights[j] * row[j];
+                }
+                double z = -y[r] * linear;
+                local[0] += z > 0 ? z + Math.log1p(Math.exp(-z)) : Math.log1p(Math.exp(z));
+                // derivative of the loss w.r.t. the linear predictor, and its second derivative
+                double g = -y[r] * LogisticModel.sigmoid(z);
+                double prob = LogisticModel.sigmoid(linear);
+                double h = prob * (1 - prob);
+                for (int j = 0; j < m; j++) {
+                    local[1 + j] += g * row[j];
+                    double hj = h * row[j];
+                    int base = 1 + m + j * m;
+                    for (int k = 0; k < m; k++) {
+                        local[base + k] += hj * row[k];
+                    }
+                }
+            }
+            return local;
+        }).reduce(new double[1 + m + m * m], (a, b) -> {
+            double[] sum = new double[a.length];
+            for (int i = 0; i < sum.length; i++) {
+                sum[i] = a[i] + b[i];
+            }
+            return sum;
+        });
+
+        for (int i = 0; i < stats.length; i++) {
+            stats[i] /= n;
+        }
+        return stats;
+    }
+
+    /**
+     * The maximum number of Newton iterations.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(25)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface IterationCount {}
+
+    /**
+     * The relative decrease in the objective below which the solver stops.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Double.class)
+    @DefaultDouble(1.0e-8)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface Tolerance {}
+
+    /**
+     * The ridge penalty on the coefficients (but not the intercept), relative to the mean log-loss.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Double.class)
+    @DefaultDouble(1.0e-6)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface Regularization {}
+}
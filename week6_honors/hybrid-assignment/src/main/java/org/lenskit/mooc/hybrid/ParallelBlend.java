@@ -0,0 +1,21 @@
+package org.lenskit.mooc.hybrid;
+
+import org.grouplens.grapht.annotation.DefaultBoolean;
+import org.lenskit.inject.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Whether a blending item scorer should score its two sides concurrently.  This roughly halves
+ * request latency when both scorers are expensive, but takes two pool threads per request, so it
+ * is off by default (evaluation sweeps already run several recommenders in parallel).
+ */
+@Qualifier
+@Parameter(Boolean.class)
+@DefaultBoolean(false)
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+public @interface ParallelBlend {
+}
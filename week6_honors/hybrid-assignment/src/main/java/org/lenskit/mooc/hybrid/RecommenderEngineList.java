@@ -1,35 +1,117 @@
 package org.lenskit.mooc.hybrid;
 
+import com.google.common.base.Stopwatch;
 import com.google.common.collect.ImmutableList;
+import org.grouplens.grapht.annotation.DefaultInteger;
 import org.lenskit.LenskitConfiguration;
 import org.lenskit.LenskitRecommenderEngine;
 import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.inject.Parameter;
 import org.lenskit.inject.Shareable;
 import org.lenskit.inject.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.inject.Qualifier;
 import java.io.Serializable;
+import java.lang.annotation.*;
 import java.util.List;
+import java.util.concurrent.*;
 
 /**
  * A list of recommenders.
+ *
+ * <p>The engines are independent, so they are built concurrently.  To keep several large models
+ * from exhausting the heap at once, each build is assumed to need {@link BuildMemory} megabytes,
+ * and no more builds run at once than fit in the heap that is free before the first one starts.
  */
 @Shareable
 public class RecommenderEngineList implements Serializable {
     private static final long serialVersionUID = 1L;
+    private static final Logger logger = LoggerFactory.getLogger(RecommenderEngineList.class);
 
     private final List<LenskitRecommenderEngine> engines;
 
     @Inject
-    public RecommenderEngineList(@Transient LogisticTrainingSplit split, RecommenderConfigurationList configs) {
-        ImmutableList.Builder<LenskitRecommenderEngine> bld = ImmutableList.builder();
-        for (LenskitConfiguration config: configs.getConfigurations()) {
-            bld.add(LenskitRecommenderEngine.build(config, split.getTrainData()));
+    public RecommenderEngineList(@Transient LogisticTrainingSplit split, RecommenderConfigurationList configs,
+                                 @BuildThreads int nthreads, @BuildMemory int memory) {
+        List<LenskitConfiguration> configurations = configs.getConfigurations();
+        final int n = configurations.size();
+        final long free = freeMemory();
+        final long perBuild = memory * 1024L * 1024L;
+        int threads = nthreads > 0 ? nthreads : Runtime.getRuntime().availableProcessors();
+        if (perBuild > 0) {
+            threads = (int) Math.min(threads, free / perBuild);
         }
-        engines = bld.build();
+        threads = Math.max(1, Math.min(n, threads));
+        final DataAccessObject dao = split.getTrainData();
+        final LenskitRecommenderEngine[] built = new LenskitRecommenderEngine[n];
+        logger.info("building {} recommender engines with up to {} threads ({} MB free)",
+                    n, threads, free / (1024 * 1024));
+        Stopwatch timer = Stopwatch.createStarted();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CompletionService<Integer> completed = new ExecutorCompletionService<>(executor);
+        try {
+            for (int i = 0; i < n; i++) {
+                final int engine = i;
+                final LenskitConfiguration config = configurations.get(i);
+                completed.submit(() -> {
+                    Stopwatch engineTimer = Stopwatch.createStarted();
+                    built[engine] = LenskitRecommenderEngine.build(config, dao);
+                    logger.info("built recommender engine {} in {}", engine, engineTimer);
+                    return engine;
+                });
+            }
+            for (int i = 0; i < n; i++) {
+                completed.take().get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted building recommender engines", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error building recommender engines", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        logger.info("built {} recommender engines in {}", n, timer);
+        engines = ImmutableList.copyOf(built);
     }
 
     public List<LenskitRecommenderEngine> getRecommenderEngines() {
         return engines;
     }
+
+    /**
+     * Get the amount of heap that can still be allocated.
+     */
+    private static long freeMemory() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+    }
+
+    /**
+     * The maximum number of recommender engines to build at once.  0 (the default) uses one thread
+     * per processor.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(0)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface BuildThreads {}
+
+    /**
+     * The estimated heap (in megabytes) needed to build one engine.  The number of concurrent
+     * builds is limited to the free heap divided by this estimate; 0 disables the limit.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(512)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface BuildMemory {}
 }
\ No newline at end of file
@@ -1,38 +1,149 @@
 package org.lenskit.mooc.hybrid;
 
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.grouplens.grapht.annotation.DefaultLong;
 import org.lenskit.LenskitRecommender;
 import org.lenskit.LenskitRecommenderEngine;
 import org.lenskit.api.ItemScorer;
 import org.lenskit.api.Recommender;
+import org.lenskit.api.ResultMap;
 import org.lenskit.data.dao.DataAccessObject;
+import org.lenskit.inject.Parameter;
+import org.lenskit.results.Results;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * A list of recommenders.
+ *
+ * <p>The list can also score a user's candidate items with all of its recommenders at once (see
+ * {@link #scoreAll(long, Collection)}).  By default the component scorers run one after another on
+ * the caller's thread.  If a {@linkplain ComponentTimeout timeout} is set, they run concurrently
+ * on a small pool shared by all lists, so the latency of a blend approaches that of its slowest
+ * component rather than the sum of them, and a component that does not finish in time contributes
+ * no scores, so blends fall back to the baseline for it.  The timeout applies to each component
+ * separately, from when it starts running, so a component that waited in the pool's queue still
+ * gets its full time; a component still queued after the timeout is dropped without running.
+ * Components that time out are cancelled without interrupting them, since an interrupt closes
+ * any NIO channel they are reading (such as a Lucene index) for every later request.  If one
+ * component fails, the others are cancelled and the failure is thrown.  The pool's threads are
+ * daemons and exit when idle, so lists that are never closed do not leak threads.
  */
 public class RecommenderList implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(RecommenderList.class);
+    private static final long POOL_KEEP_ALIVE_SECONDS = 60;
+
     List<LenskitRecommender> recommenders;
+    private final List<ItemScorer> scorers;
+    private final long timeout;
 
     @Inject
-    public RecommenderList(RecommenderEngineList engines, DataAccessObject dao) {
+    public RecommenderList(RecommenderEngineList engines, DataAccessObject dao,
+                           @ComponentTimeout long timeout) {
         recommenders = new ArrayList<>();
         for (LenskitRecommenderEngine engine: engines.getRecommenderEngines()) {
             recommenders.add(engine.createRecommender(dao));
         }
+        ImmutableList.Builder<ItemScorer> bld = ImmutableList.builder();
+        for (LenskitRecommender rec : recommenders) {
+            bld.add(rec.getItemScorer());
+        }
+        scorers = bld.build();
+        this.timeout = timeout;
     }
 
     public List<ItemScorer> getItemScorers() {
-        List<ItemScorer> scorers = new ArrayList<>(recommenders.size());
-        for (LenskitRecommender rec : recommenders) {
-            scorers.add(rec.getItemScorer());
-        }
         return scorers;
     }
 
+    /**
+     * Score items for a user with every recommender in the list, concurrently if there is a
+     * timeout.
+     *
+     * @param user The user ID.
+     * @param items The items to score.
+     * @return The results of each recommender's item scorer, in list order.  The results of a
+     * recommender that timed out are empty.
+     */
+    public List<ResultMap> scoreAll(long user, Collection<Long> items) {
+        List<ResultMap> results = new ArrayList<>(scorers.size());
+        if (timeout <= 0) {
+            for (ItemScorer scorer : scorers) {
+                results.add(scorer.scoreWithDetails(user, items));
+            }
+            return results;
+        }
+
+        ExecutorService executor = SharedPool.EXECUTOR;
+        // the time each component started running, or 0 while it is queued
+        AtomicLongArray starts = new AtomicLongArray(scorers.size());
+        long submitted = System.nanoTime();
+        List<Future<ResultMap>> futures = new ArrayList<>(scorers.size());
+        for (int i = 0; i < scorers.size(); i++) {
+            final int component = i;
+            final ItemScorer scorer = scorers.get(i);
+            futures.add(executor.submit(() -> {
+                starts.set(component, System.nanoTime());
+                return scorer.scoreWithDetails(user, items);
+            }));
+        }
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                results.add(awaitComponent(i, futures.get(i), starts, submitted, user, items.size()));
+            }
+        } catch (InterruptedException e) {
+            cancelAll(futures);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted scoring components", e);
+        } catch (ExecutionException e) {
+            cancelAll(futures);
+            throw Throwables.propagate(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Wait for a component's results.  A queued component has the timeout to start, and a running
+     * one the timeout to finish; a component that misses either is cancelled (without interrupting
+     * it) and contributes no results.
+     */
+    private ResultMap awaitComponent(int component, Future<ResultMap> future, AtomicLongArray starts,
+                                     long submitted, long user, int nitems) throws InterruptedException, ExecutionException {
+        final long timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (true) {
+            long start = starts.get(component);
+            long deadline = (start != 0 ? start : submitted) + timeoutNanos;
+            try {
+                return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (start == 0 && starts.get(component) != 0) {
+                    // it started while we waited, so it gets its own timeout
+                    continue;
+                }
+                future.cancel(false);
+                logger.debug("component {} timed out scoring {} items for user {}", component, nitems, user);
+                return Results.newResultMap();
+            }
+        }
+    }
+
+    private static void cancelAll(List<? extends Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
     public int getRecommenderCount() {
         return recommenders.size();
     }
@@ -55,4 +166,39 @@ public class RecommenderList implements AutoCloseable {
             throw Throwables.propagate(err);
         }
     }
+
+    /**
+     * Holder for the pool that runs component scorers with a timeout, created on first use.  It
+     * has one thread per processor; tasks beyond that queue, and their wait counts against the
+     * timeout.
+     */
+    private static class SharedPool {
+        static final ExecutorService EXECUTOR;
+
+        static {
+            int nthreads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor pool =
+                    new ThreadPoolExecutor(nthreads, nthreads, POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                                           new LinkedBlockingQueue<>(),
+                                           new ThreadFactoryBuilder().setDaemon(true)
+                                                                     .setNameFormat("component-scorer-%d")
+                                                                     .build());
+            pool.allowCoreThreadTimeOut(true);
+            EXECUTOR = pool;
+        }
+    }
+
+    /**
+     * The time (in milliseconds) each component scorer of a blend has to score a request, once it
+     * starts running, before the blend falls back to the baseline for it.  The default of 0 waits for every
+     * component, scoring them on the caller's thread, so offline evaluations are not affected by
+     * machine load and start no threads.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Long.class)
+    @DefaultLong(0)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface ComponentTimeout {}
 }
\ No newline at end of file
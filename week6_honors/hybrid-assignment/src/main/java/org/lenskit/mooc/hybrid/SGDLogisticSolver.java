@@ -0,0 +1,398 @@
+package org.lenskit.mooc.hybrid;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.lenskit.inject.Parameter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+
+/**
+ * Logistic solver using mini-batch stochastic gradient descent.  With more than one thread, each
+ * epoch is split into shards trained synchronously, with gradient averaging: every update, each
+ * shard computes the gradient of its next block of at least {@value #MIN_PARALLEL_BLOCK} ratings
+ * at the current weights, and the shards' gradients are combined into one step.  The step is
+ * scaled so that each rating moves the weights as far as in the sequential trainer with the same
+ * batch size (a linearly scaled learning rate), so an epoch makes the same progress on any number
+ * of threads.  The step is applied by a barrier action, so all shards always see the same weights
+ * and the result depends only on the random seed and the thread count.  A slice of the tune
+ * ratings is held out to measure the log-loss after each epoch, and training stops once it stops
+ * improving.
+ */
+public class SGDLogisticSolver implements LogisticSolver {
+    private static final Logger logger = LoggerFactory.getLogger(SGDLogisticSolver.class);
+    /**
+     * The number of epochs without improvement in held-out log-loss before training stops.
+     */
+    private static final int PATIENCE = 5;
+    /**
+     * The smallest number of ratings each shard handles per update, so that the work between two
+     * barriers outweighs the synchronization.
+     */
+    static final int MIN_PARALLEL_BLOCK = 256;
+
+    private final int batchSize;
+    private final double learningRate;
+    private final int iterationCount;
+    private final int threadCount;
+    private final double holdoutFraction;
+    private final double threshold;
+    private final Random random;
+
+    @Inject
+    public SGDLogisticSolver(@BatchSize int batch,
+                             @LearningRate double rate,
+                             @IterationCount int niters,
+                             @ThreadCount int nthreads,
+                             @HoldoutFraction double holdout,
+                             @StoppingThreshold double thresh,
+                             Random rng) {
+        Preconditions.checkArgument(batch > 0, "batch size must be positive");
+        Preconditions.checkArgument(niters > 0, "iteration count must be positive");
+        Preconditions.checkArgument(holdout >= 0 && holdout < 1, "holdout fraction must be in [0,1)");
+        batchSize = batch;
+        learningRate = rate;
+        iterationCount = niters;
+        threadCount = nthreads > 0 ? nthreads : Runtime.getRuntime().availableProcessors();
+        holdoutFraction = holdout;
+        threshold = thresh;
+        random = rng;
+    }
+
+    @Override
+    public LogisticModel fit(BlendFeatureMatrix features) {
+        final double[] x = features.getFeatureArray();
+        final double[] y = features.getLabelArray();
+        final int p = features.getColumnCount();
+        final int nrows = features.getRowCount();
+        int[] rows = new int[nrows];
+        for (int r = 0; r < nrows; r++) {
+            rows[r] = r;
+        }
+        // the first nheld rows of a random permutation are held out for early stopping
+        shuffle(rows, random);
+        final int nheld = (int) (nrows * holdoutFraction);
+        final int[] order = Arrays.copyOfRange(rows, nheld, nrows);
+        final int[] held = Arrays.copyOf(rows, nheld);
+
+        // weights[0] is the intercept, weights[1..] the coefficients
+        final double[] weights = new double[p + 1];
+        final double[] best = new double[p + 1];
+        final int block = Math.max(batchSize, MIN_PARALLEL_BLOCK);
+        final int nshards = Math.max(1, Math.min(threadCount, order.length / block));
+        final double[][] gradients = new double[nshards][p + 1];
+        logger.info("training logistic blend on {} tune ratings ({} held out) with batch size {} and {} threads",
+                    order.length, nheld, batchSize, nshards);
+        Stopwatch timer = Stopwatch.createStarted();
+
+        ExecutorService executor = nshards > 1 ? Executors.newFixedThreadPool(nshards) : null;
+        try {
+            double bestLoss = Double.POSITIVE_INFINITY;
+            int stale = 0;
+            for (int epoch = 1; epoch <= iterationCount; epoch++) {
+                shuffle(order, random);
+                if (executor == null) {
+                    trainEpoch(x, y, p, order, 0, order.length, batchSize, learningRate, weights, gradients[0]);
+                } else {
+                    trainEpochParallel(executor, x, y, p, order, block, learningRate / batchSize, weights, gradients);
+                }
+
+                if (nheld == 0) {
+                    continue;
+                }
+                double loss = logLoss(x, y, p, held, weights);
+                logger.debug("epoch {}: held-out log-loss {}", epoch, loss);
+                boolean improved = epoch == 1 || bestLoss - loss > threshold * bestLoss;
+                if (loss < bestLoss) {
+                    bestLoss = loss;
+                    System.arraycopy(weights, 0, best, 0, p + 1);
+                }
+                if (improved) {
+                    stale = 0;
+                } else if (++stale >= PATIENCE) {
+                    logger.info("held-out log-loss converged after {} epochs", epoch);
+                    break;
+                }
+            }
+            if (nheld > 0) {
+                System.arraycopy(best, 0, weights, 0, p + 1);
+                logger.info("trained logistic blend in {} with held-out log-loss {}", timer, bestLoss);
+            } else {
+                logger.info("trained logistic blend in {}", timer);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted training logistic blend", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("error training logistic blend", e.getCause());
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+
+        return LogisticModel.create(weights[0], Arrays.copyOfRange(weights, 1, weights.length));
+    }
+
+    /**
+     * Run one epoch of (mini-batch) stochastic gradient descent on the log-likelihood.  Works in
+     * place and does not allocate.
+     *
+     * @param x The row-major feature matrix.
+     * @param y The labels (&plusmn;1).
+     * @param p The number of features (columns of {@code x}).
+     * @param order The order in which to visit the rows.
+     * @param from The first position in {@code order} to visit.
+     * @param to The end (exclusive) of the positions in {@code order} to visit.
+     * @param batchSize The number of rows whose gradients are averaged into each update.
+     * @param rate The learning rate.
+     * @param weights The intercept followed by the coefficients; updated in place.
+     * @param gradient Scratch space with the same length as {@code weights}.
+     */
+    static void trainEpoch(double[] x, double[] y, int p, int[] order, int from, int to,
+                           int batchSize, double rate, double[] weights, double[] gradient) {
+        if (batchSize == 1) {
+            // plain SGD: apply each row's gradient directly, without the scratch buffer
+            for (int i = from; i < to; i++) {
+                int r = order[i];
+                int off = r * p;
+                double yr = y[r];
+                double linear = weights[0];
+                for (int j = 0; j < p; j++) {
+                    linear += weights[j + 1] * x[off + j];
+                }
+                double g = rate * yr * LogisticModel.sigmoid(-yr * linear);
+                weights[0] += g;
+                for (int j = 0; j < p; j++) {
+                    weights[j + 1] += g * x[off + j];
+                }
+            }
+            return;
+        }
+        for (int start = from; start < to; start += batchSize) {
+            int end = Math.min(start + batchSize, to);
+            accumulateGradient(x, y, p, order, start, end, weights, gradient);
+            double step = rate / (end - start);
+            for (int j = 0; j <= p; j++) {
+                weights[j] += step * gradient[j];
+            }
+        }
+    }
+
+    /**
+     * Compute the gradient of the log-likelihood, summed over a range of rows.  Does not allocate.
+     *
+     * @param x The row-major feature matrix.
+     * @param y The labels (&plusmn;1).
+     * @param p The number of features (columns of {@code x}).
+     * @param order The order in which to visit the rows.
+     * @param from The first position in {@code order} to visit.
+     * @param to The end (exclusive) of the positions in {@code order} to visit.
+     * @param weights The intercept followed by the coefficients.
+     * @param gradient The array to receive the gradient, with the same length as {@code weights}.
+     */
+    static void accumulateGradient(double[] x, double[] y, int p, int[] order, int from, int to,
+                                  double[] weights, double[] gradient) {
+        Arrays.fill(gradient, 0);
+        for (int i = from; i < to; i++) {
+            int r = order[i];
+            int off = r * p;
+            double yr = y[r];
+            double linear = weights[0];
+            for (int j = 0; j < p; j++) {
+                linear += weights[j + 1] * x[off + j];
+            }
+            // probability of the wrong label, which scales the log-likelihood gradient
+            double g = yr * LogisticModel.sigmoid(-yr * linear);
+            gradient[0] += g;
+            for (int j = 0; j < p; j++) {
+                gradient[j + 1] += g * x[off + j];
+            }
+        }
+    }
+
+    /**
+     * Run one epoch of synchronous data-parallel mini-batch gradient descent.  The rows are split
+     * into one contiguous shard per gradient buffer; every update, each shard accumulates the
+     * gradient of its next {@code block} rows, and the last shard to reach the barrier adds the
+     * sum of the shards' gradients, times the step size, to the weights.
+     *
+     * @param executor The executor running the shards (with at least one thread per shard).
+     * @param x The row-major feature matrix.
+     * @param y The labels (&plusmn;1).
+     * @param p The number of features (columns of {@code x}).
+     * @param order The order in which to visit the rows.
+     * @param block The number of rows of each shard in each update.
+     * @param rate The step size per row: the learning rate divided by the batch size.
+     * @param weights The intercept followed by the coefficients; updated in place.
+     * @param gradients One scratch array per shard, with the same length as {@code weights}.
+     */
+    static void trainEpochParallel(ExecutorService executor, double[] x, double[] y, int p, int[] order,
+                                   int block, double rate, double[] weights,
+                                   double[][] gradients) throws InterruptedException, ExecutionException {
+        final int nshards = gradients.length;
+        // shards differ in length by at most one row, so they take the same number of steps
+        final int maxShard = (order.length + nshards - 1) / nshards;
+        final int nsteps = (maxShard + block - 1) / block;
+        final CyclicBarrier barrier = new CyclicBarrier(nshards, () -> {
+            for (int t = 0; t < nshards; t++) {
+                for (int j = 0; j <= p; j++) {
+                    weights[j] += rate * gradients[t][j];
+                }
+            }
+        });
+
+        List<Callable<Void>> tasks = new ArrayList<>(nshards);
+        for (int t = 0; t < nshards; t++) {
+            final int shard = t;
+            final int from = (int) ((long) order.length * t / nshards);
+            final int to = (int) ((long) order.length * (t + 1) / nshards);
+            tasks.add(() -> {
+                try {
+                    for (int i = 0; i < nsteps; i++) {
+                        int start = Math.min(from + i * block, to);
+                        int end = Math.min(start + block, to);
+                        accumulateGradient(x, y, p, order, start, end, weights, gradients[shard]);
+                        barrier.await();
+                    }
+                } catch (Throwable th) {
+                    // release the other shards instead of leaving them at the barrier
+                    barrier.reset();
+                    throw th;
+                }
+                return null;
+            });
+        }
+        ExecutionException failure = null;
+        for (Future<Void> result : executor.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                // report the shard that failed, not the ones released from the broken barrier
+                if (failure == null || failure.getCause() instanceof BrokenBarrierException) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Compute the mean log-loss of the blend on a set of rows.
+     *
+     * @param x The row-major feature matrix.
+     * @param y The labels (&plusmn;1).
+     * @param p The number of features (columns of {@code x}).
+     * @param rows The rows to evaluate.
+     * @param weights The intercept followed by the coefficients.
+     * @return The mean negative log-likelihood of the labels of {@code rows}.
+     */
+    static double logLoss(double[] x, double[] y, int p, int[] rows, double[] weights) {
+        double sum = 0;
+        for (int r : rows) {
+            int off = r * p;
+            double linear = weights[0];
+            for (int j = 0; j < p; j++) {
+                linear += weights[j + 1] * x[off + j];
+            }
+            // log(1 + e^z), computed without overflow
+            double z = -y[r] * linear;
+            sum += z > 0 ? z + Math.log1p(Math.exp(-z)) : Math.log1p(Math.exp(z));
+        }
+        return sum / rows.length;
+    }
+
+    /**
+     * Shuffle an array in place (Fisher-Yates).
+     */
+    static void shuffle(int[] array, Random rng) {
+        for (int i = array.length - 1; i > 0; i--) {
+            int j = rng.nextInt(i + 1);
+            int tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+
+    /**
+     * The number of tune ratings whose gradients are averaged into each update of the logistic
+     * blend.  The default of 1 is plain stochastic gradient descent.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(1)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface BatchSize {}
+
+    /**
+     * The learning rate of the logistic blend's gradient descent.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Double.class)
+    @DefaultDouble(0.00005)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface LearningRate {}
+
+    /**
+     * The maximum number of epochs to train the logistic blend.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(100)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface IterationCount {}
+
+    /**
+     * The number of threads training the logistic blend.  0 (the default) uses one per processor;
+     * 1 trains sequentially.  Each thread needs at least
+     * {@value SGDLogisticSolver#MIN_PARALLEL_BLOCK} tune ratings, so small tune sets use fewer.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Integer.class)
+    @DefaultInteger(0)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface ThreadCount {}
+
+    /**
+     * The fraction of the tune ratings held out to measure log-loss for early stopping.  0 disables
+     * early stopping, so training always runs for the full iteration count.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Double.class)
+    @DefaultDouble(0.1)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface HoldoutFraction {}
+
+    /**
+     * The relative improvement in held-out log-loss below which an epoch does not count as progress.
+     */
+    @Documented
+    @Qualifier
+    @Parameter(Double.class)
+    @DefaultDouble(1.0e-4)
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target({ElementType.PARAMETER, ElementType.FIELD, ElementType.METHOD})
+    public @interface StoppingThreshold {}
+}